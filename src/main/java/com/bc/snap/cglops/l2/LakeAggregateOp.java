@@ -16,6 +16,7 @@
 
 package com.bc.snap.cglops.l2;
 
+import com.bc.snap.cglops.l3.AggregatorRepresentativeSpectrum;
 import org.esa.snap.binning.AggregatorConfig;
 import org.esa.snap.binning.CellProcessorConfig;
 import org.esa.snap.binning.CompositingType;
@@ -72,6 +73,11 @@ public class LakeAggregateOp extends Operator {
     @Parameter(description = "The band maths expression used to filter input pixels")
     private String maskExpr;
 
+    @Parameter(description = "The type of compositing. BINNING aggregates all pixels of a product in a bin, " +
+            "MOSAICKING only the pixel closest to the bin center, after reprojecting the product.",
+            defaultValue = "MOSAICKING")
+    private CompositingType compositingType;
+
     @Parameter(alias = "variables", itemAlias = "variable",
             description = "List of variables. A variable will generate a virtual band " +
                     "in each source data product, so that it can be used as input for the binning.")
@@ -143,9 +149,13 @@ public class LakeAggregateOp extends Operator {
         binningOp.setParameter("metadataAggregatorName", metadataAggregatorName);
 
         binningOp.setPlanetaryGridClass("org.esa.snap.binning.support.PlateCarreeGrid");
-        binningOp.setCompositingType(CompositingType.MOSAICKING);
+        binningOp.setCompositingType(compositingType != null ? compositingType : CompositingType.MOSAICKING);
 
-        setTargetProduct(binningOp.getTargetProduct());
+        // the binning is done in initialize(), so the aggregators it creates can be finished afterwards,
+        // a failure to finish them is suppressed by a failure of the binning
+        try (AggregatorRepresentativeSpectrum.Collector ignored = AggregatorRepresentativeSpectrum.Collector.open()) {
+            setTargetProduct(binningOp.getTargetProduct());
+        }
     }
 
     public static class Spi extends OperatorSpi {
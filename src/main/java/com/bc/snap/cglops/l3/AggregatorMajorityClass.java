@@ -25,26 +25,56 @@ import org.esa.snap.binning.Observation;
 import org.esa.snap.binning.VariableContext;
 import org.esa.snap.binning.Vector;
 import org.esa.snap.binning.WritableVector;
+import org.esa.snap.core.datamodel.ProductData;
 import org.esa.snap.core.gpf.annotations.Parameter;
 
+import java.text.ParseException;
 import java.util.Arrays;
-import java.util.Random;
 
 /**
- * An aggregator for index classifications
+ * An aggregator for index classifications.
+ * <p>
+ * If several classes have the most counts, the majority class is chosen by the {@link TieBreak} policy.
+ * The choice only depends on the counts, the bin and the period, so repeated runs give identical products.
+ * <p>
+ * By default, the counts of all classes are features. With many classes, {@code topN} keeps only the (class, counts)
+ * pairs of the N classes with the most counts per bin, sorted by decreasing counts, so that the feature width does not
+ * grow with the number of classes. The pairs are maintained by the Space-Saving algorithm: a class without a pair
+ * replaces the pair with the least counts and inherits its counts, so a class which dominates the end of a bin is
+ * still found. The counts of all pairs add up to the true number of analyzed observations. Within a spatial bin,
+ * the counts of a class deviate from its true counts by at most {@code <varName>_class_error_counts}, the largest
+ * inherited counts, which is written to the output as well. Spatial bins are merged by the same algorithm and their
+ * errors add up; as the merged pairs are estimates themselves, the merged error is an approximate bound. Counts are
+ * exact for bins with at most N distinct classes.
  */
 public class AggregatorMajorityClass extends AbstractAggregator {
 
     private final int varIndex;
     private final int[] classes;
-    private final Random random;
+    private final ClassIndex classIndex;
+    private final TieBreak tieBreak;
+    private final int startDay;
+    private final int topN;
+    private final int otherIndex;
+    private final int hashIndex;
 
     public AggregatorMajorityClass(VariableContext varCtx, String varName, int[] classes) {
+        this(varCtx, varName, classes, TieBreak.LOWEST_CLASS, null, 0);
+    }
+
+    AggregatorMajorityClass(VariableContext varCtx, String varName, int[] classes, TieBreak tieBreak, String startDate, int topN) {
         super(Descriptor.NAME,
-              getIntermediateFeatureNames(varName, classes),
-              getIntermediateFeatureNames(varName, classes),
-              getOutputFeatureNames(varName, classes));
+              getIntermediateFeatureNames(varName, classes, topN),
+              getTemporalFeatureNames(varName, classes, tieBreak, topN),
+              getOutputFeatureNames(varName, classes, topN));
         this.classes = classes;
+        this.classIndex = new ClassIndex(classes);
+        if (topN < 0) {
+            throw new IllegalArgumentException("topN must not be negative");
+        }
+        this.topN = topN;
+        this.otherIndex = topN > 0 ? 2 * topN : classes.length;
+        this.hashIndex = topN > 0 ? otherIndex + 2 : otherIndex + 1;
 
         if (varCtx == null) {
             throw new NullPointerException("varCtx");
@@ -52,15 +82,25 @@ public class AggregatorMajorityClass extends AbstractAggregator {
         if (varName == null) {
             throw new NullPointerException("varName");
         }
+        if (tieBreak == null) {
+            throw new NullPointerException("tieBreak");
+        }
         this.varIndex = varCtx.getVariableIndex(varName);
-        random = new Random();
+        this.tieBreak = tieBreak;
+        if (startDate != null) {
+            try {
+                startDay = ProductData.UTC.parse(startDate, "yyyy-MM-dd").getDaysFraction();
+            } catch (ParseException e) {
+                throw new IllegalArgumentException(e);
+            }
+        } else {
+            startDay = 0;
+        }
     }
 
     @Override
     public void initSpatial(BinContext binContext, WritableVector writableVector) {
-        for (int i = 0; i < classes.length + 1; i++) {
-            writableVector.set(i, 0F);
-        }
+        initCounts(writableVector);
     }
 
     @Override
@@ -69,14 +109,15 @@ public class AggregatorMajorityClass extends AbstractAggregator {
         if (Float.isNaN(value)) {
             return; // don't aggregate NaN at all
         }
-        for (int i = 0; i < classes.length; i++) {
-            if (value == classes[i]) {
-                writableVector.set(i, writableVector.get(i) + 1);
-                return;
-            }
+        int i = classIndex.indexOf(value);
+        if (i < 0) {
+            // value is not NaN, but another class
+            i = otherIndex;
+        } else if (topN > 0) {
+            addTopCounts(writableVector, i, 1);
+            return;
         }
-        // value is not NaN, but another class
-        writableVector.set(classes.length, writableVector.get(classes.length) + 1);
+        writableVector.set(i, writableVector.get(i) + 1);
     }
 
     @Override
@@ -85,13 +126,20 @@ public class AggregatorMajorityClass extends AbstractAggregator {
 
     @Override
     public void initTemporal(BinContext binContext, WritableVector writableVector) {
-        for (int i = 0; i < classes.length + 1; i++) {
-            writableVector.set(i, 0F);
-        }
+        initCounts(writableVector);
     }
 
     @Override
     public void aggregateTemporal(BinContext binContext, Vector spatialVector, int numSpatialObs, WritableVector temporalVector) {
+        if (topN > 0) {
+            for (int k = 0; k < topN && spatialVector.get(2 * k + 1) > 0; k++) {
+                addTopCounts(temporalVector, (int) spatialVector.get(2 * k), spatialVector.get(2 * k + 1));
+            }
+            temporalVector.set(otherIndex, temporalVector.get(otherIndex) + spatialVector.get(otherIndex));
+            // the spatial pairs are overestimated by up to their error, which adds to any inherited error
+            temporalVector.set(otherIndex + 1, temporalVector.get(otherIndex + 1) + spatialVector.get(otherIndex + 1));
+            return;
+        }
         for (int i = 0; i < classes.length + 1; i++) {
             temporalVector.set(i, temporalVector.get(i) + spatialVector.get(i));
         }
@@ -99,11 +147,17 @@ public class AggregatorMajorityClass extends AbstractAggregator {
 
     @Override
     public void completeTemporal(BinContext binContext, int i, WritableVector writableVector) {
-
+        if (tieBreak == TieBreak.HASHED) {
+            writableVector.set(hashIndex, tieBreakHash(binContext.getIndex(), startDay));
+        }
     }
 
     @Override
     public void computeOutput(Vector temporalVector, WritableVector outputVector) {
+        if (topN > 0) {
+            computeTopOutput(temporalVector, outputVector);
+            return;
+        }
         // test for valid observations
         boolean hasValidObservation = false;
         for (int i = 0; i < classes.length + 1; i++) {
@@ -116,6 +170,7 @@ public class AggregatorMajorityClass extends AbstractAggregator {
         if (hasValidObservation) {
             int majorityClassIndex = -1;
             float majorityClassCounts = -1;
+            int numTies = 0;
             float sum_all = 0f;
             float sum_analyzed = 0f;
             for (int i = 0; i < classes.length; i++) {
@@ -126,12 +181,20 @@ public class AggregatorMajorityClass extends AbstractAggregator {
                 if (counts > majorityClassCounts) {
                     majorityClassCounts = counts;
                     majorityClassIndex = i;
+                    numTies = 1;
                 } else if (counts == majorityClassCounts) {
-                    // TODO decide (cb,do) if this is the right thing (TM)
-                    // TODO random decision are not predictable science
-                    if (random.nextBoolean()) {
-                        majorityClassCounts = counts;
+                    numTies++;
+                    if (tieBreak.prefers(classes[i], classes[majorityClassIndex])) {
+                        majorityClassIndex = i;
+                    }
+                }
+            }
+            if (tieBreak == TieBreak.HASHED && numTies > 1) {
+                int tie = (int) temporalVector.get(hashIndex) % numTies;
+                for (int i = 0; i < classes.length; i++) {
+                    if (temporalVector.get(i) == majorityClassCounts && tie-- == 0) {
                         majorityClassIndex = i;
+                        break;
                     }
                 }
             }
@@ -146,6 +209,109 @@ public class AggregatorMajorityClass extends AbstractAggregator {
         }
     }
 
+    private void computeTopOutput(Vector temporalVector, WritableVector outputVector) {
+        float sum_analyzed = 0;
+        for (int k = 0; k < topN; k++) {
+            sum_analyzed += temporalVector.get(2 * k + 1);
+        }
+        float sum_all = sum_analyzed + temporalVector.get(otherIndex);
+        if (sum_all == 0) {
+            for (int i = 0; i < outputVector.size(); i++) {
+                outputVector.set(i, Float.NaN);
+            }
+            return;
+        }
+        // the pairs are sorted by decreasing counts, ties are at the start
+        float majorityClassCounts = temporalVector.get(1);
+        int numTies = 0;
+        int majorityClassIndex = -1;
+        for (int k = 0; k < topN; k++) {
+            float counts = temporalVector.get(2 * k + 1);
+            if (counts > 0) {
+                outputVector.set(2 * k, classes[(int) temporalVector.get(2 * k)]);
+                outputVector.set(2 * k + 1, counts);
+            } else {
+                outputVector.set(2 * k, Float.NaN);
+                outputVector.set(2 * k + 1, 0);
+            }
+            if (counts > 0 && counts == majorityClassCounts) {
+                int i = (int) temporalVector.get(2 * k);
+                if (numTies == 0 || tieBreak.prefers(classes[i], classes[majorityClassIndex])) {
+                    majorityClassIndex = i;
+                }
+                numTies++;
+            }
+        }
+        if (tieBreak == TieBreak.HASHED && numTies > 1) {
+            // the same choice as for dense counts: the tie-th of the tied classes in configuration order
+            int tie = (int) temporalVector.get(hashIndex) % numTies;
+            for (int k = 0; k < numTies; k++) {
+                int i = (int) temporalVector.get(2 * k);
+                int numBefore = 0;
+                for (int l = 0; l < numTies; l++) {
+                    if (temporalVector.get(2 * l) < i) {
+                        numBefore++;
+                    }
+                }
+                if (numBefore == tie) {
+                    majorityClassIndex = i;
+                    break;
+                }
+            }
+        }
+        outputVector.set(otherIndex, sum_all);
+        outputVector.set(otherIndex + 1, sum_analyzed);
+        outputVector.set(otherIndex + 2, majorityClassIndex >= 0 ? classes[majorityClassIndex] : Float.NaN);
+        outputVector.set(otherIndex + 3, temporalVector.get(otherIndex + 1));
+    }
+
+    private void initCounts(WritableVector vector) {
+        for (int i = 0; i < vector.size(); i++) {
+            vector.set(i, 0F);
+        }
+        for (int k = 0; k < topN; k++) {
+            vector.set(2 * k, Float.NaN);
+        }
+    }
+
+    /**
+     * Adds counts to the (class index, counts) pair of a class and keeps the pairs sorted by decreasing counts.
+     * If the class has no pair and all pairs are used, it replaces the last pair, which has the least counts,
+     * and inherits its counts (Space-Saving). The inherited counts bound the error of the new pair.
+     */
+    private void addTopCounts(WritableVector vector, int index, float counts) {
+        int k = 0;
+        while (k < topN && vector.get(2 * k + 1) > 0 && vector.get(2 * k) != index) {
+            k++;
+        }
+        if (k == topN) {
+            k = topN - 1;
+            vector.set(otherIndex + 1, Math.max(vector.get(otherIndex + 1), vector.get(2 * k + 1)));
+        }
+        counts += vector.get(2 * k + 1);
+        while (k > 0 && vector.get(2 * k - 1) < counts) {
+            vector.set(2 * k, vector.get(2 * k - 2));
+            vector.set(2 * k + 1, vector.get(2 * k - 1));
+            k--;
+        }
+        vector.set(2 * k, index);
+        vector.set(2 * k + 1, counts);
+    }
+
+    static String[] getIntermediateFeatureNames(String varName, int[] classes, int topN) {
+        if (topN > 0) {
+            String[] features = new String[2 * topN + 2];
+            for (int k = 0; k < topN; k++) {
+                features[2 * k] = String.format("%s_top_%d_class", varName, k + 1);
+                features[2 * k + 1] = String.format("%s_top_%d_counts", varName, k + 1);
+            }
+            features[2 * topN] = varName + "_class_other_counts";
+            features[2 * topN + 1] = varName + "_class_error_counts";
+            return features;
+        }
+        return getIntermediateFeatureNames(varName, classes);
+    }
+
     static String[] getIntermediateFeatureNames(String varName, int[] classes) {
         String[] features = new String[classes.length + 1];
         for (int i = 0; i < classes.length; i++) {
@@ -155,6 +321,31 @@ public class AggregatorMajorityClass extends AbstractAggregator {
         return features;
     }
 
+    static String[] getTemporalFeatureNames(String varName, int[] classes, TieBreak tieBreak, int topN) {
+        String[] features = getIntermediateFeatureNames(varName, classes, topN);
+        if (tieBreak == TieBreak.HASHED) {
+            features = Arrays.copyOf(features, features.length + 1);
+            features[features.length - 1] = varName + "_tie_break_hash";
+        }
+        return features;
+    }
+
+    static String[] getOutputFeatureNames(String varName, int[] classes, int topN) {
+        if (topN > 0) {
+            String[] features = new String[2 * topN + 4];
+            for (int k = 0; k < topN; k++) {
+                features[2 * k] = String.format("%s_top_%d_class", varName, k + 1);
+                features[2 * k + 1] = String.format("%s_top_%d_counts", varName, k + 1);
+            }
+            features[2 * topN] = varName + "_sum_all";
+            features[2 * topN + 1] = varName + "_sum_analyzed";
+            features[2 * topN + 2] = varName + "_majority_class";
+            features[2 * topN + 3] = varName + "_class_error_counts";
+            return features;
+        }
+        return getOutputFeatureNames(varName, classes);
+    }
+
     static String[] getOutputFeatureNames(String varName, int[] classes) {
         String[] features = new String[classes.length + 3];
         for (int i = 0; i < classes.length; i++) {
@@ -166,11 +357,23 @@ public class AggregatorMajorityClass extends AbstractAggregator {
         return features;
     }
 
+    /**
+     * @return A value in [0, 2^23), exactly representable as float.
+     */
+    static int tieBreakHash(long binIndex, int period) {
+        long h = binIndex * 0x9E3779B97F4A7C15L + period;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        h ^= h >>> 31;
+        return (int) (h & 0x7FFFFF);
+    }
 
     @Override
     public String toString() {
         return "AggregatorMajorityClass{" +
                 "varIndex=" + varIndex +
+                ", tieBreak=" + tieBreak +
+                ", topN=" + topN +
                 ", spatialFeatureNames=" + Arrays.toString(getSpatialFeatureNames()) +
                 ", temporalFeatureNames=" + Arrays.toString(getTemporalFeatureNames()) +
                 ", outputFeatureNames=" + Arrays.toString(getOutputFeatureNames()) +
@@ -183,12 +386,54 @@ public class AggregatorMajorityClass extends AbstractAggregator {
         String varName;
         @Parameter
         int[] classes;
+        @Parameter(description = "How the majority class is chosen if several classes have the most counts.",
+                defaultValue = "LOWEST_CLASS")
+        TieBreak tieBreak;
+        @Parameter(description = "First day of the period in format 'YYYY-MM-DD'. Only used by the HASHED tie break, " +
+                "which then chooses differently in different periods.")
+        String startDate;
+        @Parameter(description = "If greater than zero, only the classes with the most counts are kept per bin, " +
+                "as pairs '<varName>_top_<N>_class' and '<varName>_top_<N>_counts'. A class that doesn't fit replaces " +
+                "the pair with the least counts and inherits its counts, the bound of the deviation of the counts is written " +
+                "to '<varName>_class_error_counts'. Use it for classifications with many classes.",
+                defaultValue = "0")
+        int topN;
 
         public Config() {
             super(Descriptor.NAME);
         }
     }
 
+    /**
+     * The policy for choosing the majority class among classes with equal counts.
+     */
+    public enum TieBreak {
+        /**
+         * The class with the lowest value.
+         */
+        LOWEST_CLASS,
+        /**
+         * The class with the highest value.
+         */
+        HIGHEST_CLASS,
+        /**
+         * One of the classes, chosen by a hash of the bin index and the start day of the period.
+         * Neighbouring bins with the same counts do not all get the same class, so no class is favoured in the mean.
+         */
+        HASHED;
+
+        boolean prefers(int candidateClass, int currentClass) {
+            switch (this) {
+                case LOWEST_CLASS:
+                    return candidateClass < currentClass;
+                case HIGHEST_CLASS:
+                    return candidateClass > currentClass;
+                default:
+                    return false;
+            }
+        }
+    }
+
     public static class Descriptor implements AggregatorDescriptor {
 
         public static final String NAME = "MAJORITY_CLASS";
@@ -201,7 +446,8 @@ public class AggregatorMajorityClass extends AbstractAggregator {
         @Override
         public Aggregator createAggregator(VariableContext varCtx, AggregatorConfig aggregatorConfig) {
             Config config = (Config) aggregatorConfig;
-            return new AggregatorMajorityClass(varCtx, config.varName, config.classes);
+            TieBreak tieBreak = config.tieBreak != null ? config.tieBreak : TieBreak.LOWEST_CLASS;
+            return new AggregatorMajorityClass(varCtx, config.varName, config.classes, tieBreak, config.startDate, config.topN);
         }
 
         @Override
@@ -218,7 +464,7 @@ public class AggregatorMajorityClass extends AbstractAggregator {
         @Override
         public String[] getTargetVarNames(AggregatorConfig aggregatorConfig) {
             Config config = (Config) aggregatorConfig;
-            return getOutputFeatureNames(config.varName, config.classes);
+            return getOutputFeatureNames(config.varName, config.classes, config.topN);
         }
     }
 }
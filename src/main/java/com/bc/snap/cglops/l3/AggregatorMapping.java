@@ -30,13 +30,21 @@ import org.esa.snap.core.util.StringUtils;
 
 /**
  * An aggregator that maps values from value ranges to given constant values.
+ * <p>
+ * The range of a value is found by binary search in the bounds. If the ranges have about the same width,
+ * the range is computed directly from the value and only checked against the bounds.
  */
 public class AggregatorMapping extends AbstractAggregator {
 
+    // the bounds are treated as uniform if no bound deviates more than this fraction of the width from the grid
+    private static final double UNIFORM_TOLERANCE = 1e-3;
+
     private final int varIndex;
     private final float[] bounds;
     private final float[] codes;
     private final float fillValue;
+    // the inverse width of uniform ranges, 0 if the ranges are not uniform
+    private final double inverseWidth;
 
     public AggregatorMapping(VariableContext varCtx, String varName, String targetName, float[] bounds, float[] codes, float fillValue) {
         super(Descriptor.NAME,
@@ -46,10 +54,47 @@ public class AggregatorMapping extends AbstractAggregator {
         if (varCtx == null) {
             throw new NullPointerException("varCtx");
         }
+        if (bounds == null) {
+            throw new NullPointerException("bounds");
+        }
+        if (codes == null) {
+            throw new NullPointerException("codes");
+        }
+        if (bounds.length == 0) {
+            throw new IllegalArgumentException("At least one bound must be given");
+        }
+        if (codes.length > bounds.length - 1) {
+            throw new IllegalArgumentException("There are " + codes.length + " codes, but only " + (bounds.length - 1) + " ranges");
+        }
+        for (int i = 0; i < bounds.length; i++) {
+            if (Float.isNaN(bounds[i])) {
+                throw new IllegalArgumentException("bounds[" + i + "] is NaN");
+            }
+            if (i > 0 && bounds[i] < bounds[i - 1]) {
+                throw new IllegalArgumentException("bounds must not decrease, but bounds[" + i + "] < bounds[" + (i - 1) + "]");
+            }
+        }
         this.varIndex = varCtx.getVariableIndex(varName);
         this.bounds = bounds;
         this.codes = codes;
         this.fillValue = fillValue;
+        this.inverseWidth = getInverseUniformWidth(bounds, codes.length);
+    }
+
+    private static double getInverseUniformWidth(float[] bounds, int numRanges) {
+        if (numRanges < 2) {
+            return 0.0;
+        }
+        double width = ((double) bounds[numRanges] - bounds[0]) / numRanges;
+        if (!(width > 0.0) || Double.isInfinite(width)) {
+            return 0.0;
+        }
+        for (int i = 1; i < numRanges; i++) {
+            if (Math.abs(bounds[i] - (bounds[0] + i * width)) > UNIFORM_TOLERANCE * width) {
+                return 0.0;
+            }
+        }
+        return 1.0 / width;
     }
 
     @Override
@@ -104,16 +149,29 @@ public class AggregatorMapping extends AbstractAggregator {
         outputVector.set(0, mappedValue);
     }
 
-    private float mapToIndex(double value) {
-        for (int i = 0; i < codes.length; i++) {
-            final float code = codes[i];
-            final double lowerBound = bounds[i];
-            final double upperBound = bounds[i + 1];
-            if (value >= lowerBound && value < upperBound) {
-                return code;
+    float mapToIndex(double value) {
+        final int numRanges = codes.length;
+        if (!(value >= bounds[0] && value < bounds[numRanges])) {
+            return fillValue;
+        }
+        if (inverseWidth > 0.0) {
+            int i = (int) ((value - bounds[0]) * inverseWidth);
+            if (i < numRanges && value >= bounds[i] && value < bounds[i + 1]) {
+                return codes[i];
+            }
+        }
+        // find the last lower bound less or equal the value, it belongs to the only non-empty range containing it
+        int low = 0;
+        int high = numRanges - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (bounds[mid] <= value) {
+                low = mid;
+            } else {
+                high = mid - 1;
             }
         }
-        return fillValue;
+        return codes[low];
     }
 
     public static class Config extends AggregatorConfig {
@@ -126,11 +184,12 @@ public class AggregatorMapping extends AbstractAggregator {
         @Parameter(label = "Target band name (optional)",
                 description = "The name for the resulting band. If empty, the source band name is used.")
         String targetName;
-        @Parameter(description = "An array with the bounds of the  value ranges.",
+        @Parameter(description = "An array with the bounds of the value ranges, in non-decreasing order. " +
+                "Range i includes bounds[i] and excludes bounds[i + 1].",
                 notEmpty = true,
                 notNull = true)
         float[] bounds;
-        @Parameter(description = "An array with the codes associated with every range.")
+        @Parameter(description = "An array with the codes associated with every range. If not given, the codes are the range indices.")
         float[] codes;
         @Parameter(description = "The value used if the input is not in any range.",
                 defaultValue = "NaN")
@@ -157,7 +216,7 @@ public class AggregatorMapping extends AbstractAggregator {
             if (config.codes != null) {
                 codes = config.codes;
             } else {
-                codes = new float[config.bounds.length];
+                codes = new float[config.bounds.length - 1];
                 for (int i = 0; i < codes.length; i++) {
                     codes[i] = i;
                 }
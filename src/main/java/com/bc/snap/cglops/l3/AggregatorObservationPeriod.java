@@ -38,20 +38,39 @@ import java.util.Arrays;
  * Include offset from the start of the n-day period as a number from 0
  * to (n-1) for both first_obs and last_obs bands (give a value for each pixel)
  * <p>
- * Only supported for CompositingType.MOSAICKING.
+ * Supports CompositingType.BINNING and MOSAICKING, the spatial bins keep the first and last day of their observations.
+ * <p>
+ * Optionally, the days with observations are written as a bit mask: bit d of the mask is set if the bin was observed
+ * on day d of the period. For a pass spanning midnight, all days from its first to its last observation are set.
+ * The mask is split into bands '&lt;maskName&gt;_1', '&lt;maskName&gt;_2', ... of {@value #MASK_CHUNK_BITS} days each,
+ * so that every band holds an exact integer in a float feature and can be written as unsigned 16 bit integer band.
  */
 public class AggregatorObservationPeriod extends AbstractAggregator {
 
+    static final int MASK_CHUNK_BITS = 16;
+
     private final int startDay;
+    private final int maskDays;
 
     AggregatorObservationPeriod(VariableContext varCtx, String startDate, String firstObsName, String lastObsName) {
+        this(varCtx, startDate, firstObsName, lastObsName, null, 0);
+    }
+
+    AggregatorObservationPeriod(VariableContext varCtx, String startDate, String firstObsName, String lastObsName, String maskName, int maskDays) {
         super(Descriptor.NAME,
-              new String[]{"day"},
-              new String[]{firstObsName, lastObsName},
-              new String[]{firstObsName, lastObsName});
+              new String[]{"first_day", "last_day"},
+              createTemporalNames(firstObsName, lastObsName, maskName, maskDays),
+              createTemporalNames(firstObsName, lastObsName, maskName, maskDays));
         if (varCtx == null) {
             throw new NullPointerException("varCtx");
         }
+        if (maskDays < 0) {
+            throw new IllegalArgumentException("maskDays must not be negative");
+        }
+        if (maskDays > 0 && maskName == null) {
+            throw new NullPointerException("maskName");
+        }
+        this.maskDays = maskDays;
         try {
             startDay = ProductData.UTC.parse(startDate, "yyyy-MM-dd").getDaysFraction();
         } catch (ParseException e) {
@@ -59,25 +78,44 @@ public class AggregatorObservationPeriod extends AbstractAggregator {
         }
     }
 
+    private static String[] createTemporalNames(String firstObsName, String lastObsName, String maskName, int maskDays) {
+        String[] names = new String[2 + getNumMaskChunks(maskDays)];
+        names[0] = firstObsName;
+        names[1] = lastObsName;
+        for (int i = 2; i < names.length; i++) {
+            names[i] = maskName + "_" + (i - 1);
+        }
+        return names;
+    }
+
+    private static int getNumMaskChunks(int maskDays) {
+        return (maskDays + MASK_CHUNK_BITS - 1) / MASK_CHUNK_BITS;
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////////
 
     @Override
     public void initSpatial(BinContext binContext, WritableVector writableVector) {
         writableVector.set(0, Float.NaN);
+        writableVector.set(1, Float.NaN);
     }
 
     @Override
     public void aggregateSpatial(BinContext binContext, Observation observation, WritableVector writableVector) {
         double mjd = observation.getMJD();
         int day = (int) (mjd - startDay);
-        writableVector.set(0, day);
+        float firstDay = writableVector.get(0);
+        if (Float.isNaN(firstDay) || day < firstDay) {
+            writableVector.set(0, day);
+        }
+        float lastDay = writableVector.get(1);
+        if (Float.isNaN(lastDay) || day > lastDay) {
+            writableVector.set(1, day);
+        }
     }
 
     @Override
     public void completeSpatial(BinContext binContext, int numSpatialObs, WritableVector writableVector) {
-        if (numSpatialObs > 1) {
-            throw new IllegalArgumentException("This aggregator only supports MOSAICKING");
-        }
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -86,13 +124,24 @@ public class AggregatorObservationPeriod extends AbstractAggregator {
     public void initTemporal(BinContext binContext, WritableVector writableVector) {
         writableVector.set(0, Float.POSITIVE_INFINITY);
         writableVector.set(1, Float.NEGATIVE_INFINITY);
+        for (int i = 2; i < writableVector.size(); i++) {
+            writableVector.set(i, 0);
+        }
     }
 
     @Override
     public void aggregateTemporal(BinContext binContext, Vector spatialVector, int numSpatialObs, WritableVector temporalVector) {
-        float day = spatialVector.get(0);
-        temporalVector.set(0, Math.min(temporalVector.get(0), day));
-        temporalVector.set(1, Math.max(temporalVector.get(1), day));
+        temporalVector.set(0, Math.min(temporalVector.get(0), spatialVector.get(0)));
+        temporalVector.set(1, Math.max(temporalVector.get(1), spatialVector.get(1)));
+        if (maskDays > 0 && !Float.isNaN(spatialVector.get(0))) {
+            int firstDay = Math.max((int) spatialVector.get(0), 0);
+            int lastDay = Math.min((int) spatialVector.get(1), maskDays - 1);
+            for (int day = firstDay; day <= lastDay; day++) {
+                int index = 2 + day / MASK_CHUNK_BITS;
+                int chunk = (int) temporalVector.get(index);
+                temporalVector.set(index, chunk | (1 << (day % MASK_CHUNK_BITS)));
+            }
+        }
     }
 
     @Override
@@ -107,8 +156,9 @@ public class AggregatorObservationPeriod extends AbstractAggregator {
 
     @Override
     public void computeOutput(Vector temporalVector, WritableVector outputVector) {
-        outputVector.set(0, temporalVector.get(0));
-        outputVector.set(1, temporalVector.get(1));
+        for (int i = 0; i < outputVector.size(); i++) {
+            outputVector.set(i, temporalVector.get(i));
+        }
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -131,6 +181,12 @@ public class AggregatorObservationPeriod extends AbstractAggregator {
         String firstObsName;
         @Parameter(defaultValue = "last_obs")
         String lastObsName;
+        @Parameter(description = "If greater than zero, the days with observations of this number of days starting at " +
+                "'startDate' are written as bit mask, in bands of " + MASK_CHUNK_BITS + " days each.",
+                defaultValue = "0")
+        int maskDays;
+        @Parameter(defaultValue = "obs_days")
+        String maskName;
 
         public Config() {
             super(Descriptor.NAME);
@@ -153,7 +209,9 @@ public class AggregatorObservationPeriod extends AbstractAggregator {
             String firstObsName = StringUtils.isNotNullAndNotEmpty(config.firstObsName) ? config.firstObsName : "first_obs";
             String lastObsName = StringUtils.isNotNullAndNotEmpty(config.lastObsName) ? config.lastObsName : "last_obs";
 
-            return new AggregatorObservationPeriod(varCtx, config.startDate, firstObsName, lastObsName);
+            String maskName = StringUtils.isNotNullAndNotEmpty(config.maskName) ? config.maskName : "obs_days";
+
+            return new AggregatorObservationPeriod(varCtx, config.startDate, firstObsName, lastObsName, maskName, config.maskDays);
         }
 
         @Override
@@ -169,7 +227,8 @@ public class AggregatorObservationPeriod extends AbstractAggregator {
         @Override
         public String[] getTargetVarNames(AggregatorConfig aggregatorConfig) {
             Config config = (Config) aggregatorConfig;
-            return new String[]{config.firstObsName, config.lastObsName};
+            String maskName = StringUtils.isNotNullAndNotEmpty(config.maskName) ? config.maskName : "obs_days";
+            return createTemporalNames(config.firstObsName, config.lastObsName, maskName, config.maskDays);
         }
     }
 }
@@ -27,14 +27,18 @@ import org.esa.snap.binning.Observation;
 import org.esa.snap.binning.VariableContext;
 import org.esa.snap.binning.Vector;
 import org.esa.snap.binning.WritableVector;
-import org.esa.snap.binning.support.GrowableVector;
 import org.esa.snap.core.datamodel.ProductData;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.util.StringUtils;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static java.lang.Math.acos;
 import static java.lang.Math.sqrt;
@@ -48,38 +52,114 @@ import static java.lang.Math.sqrt;
  * has the best metric (angle close to unity, smallest difference) is the
  * 'representative spectrum'.
  * <p>
- * Only supported for CompositingType.MOSAICKING.
+ * The method {@link Method#Medoid} doesn't use the median spectrum, it chooses the spectrum
+ * with the smallest mean distance to all other spectra.
+ * <p>
+ * With CompositingType.BINNING, a bin may have several observations of one pass. Of those, the observed
+ * spectrum closest to the mean spectrum of the pass (Euclidean distance over the search bands) is kept,
+ * together with its day, so the result is always an observed spectrum. It then takes part in the temporal
+ * selection like the single spectrum of a pass with CompositingType.MOSAICKING.
  */
 public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
 
+    private static final int SELECT_INSERTION_SORT_THRESHOLD = 16;
+    // the histogram median is used if the range of the codes is at most this factor times the number of spectra
+    private static final int HISTOGRAM_MAX_RANGE_FACTOR = 2;
+    private static final String NUM_SPECTRA_NAME = "num_spectra";
+    private static final String SCORE_NAME = "score";
+    private static final String NUM_OBS_NAME = "num_obs";
+
     private final int startDay;
 
-    private final Method method;
+    private final Method[] methods;
     private final int[] varIndices;
     private final String[] varNames;
-    private final String[] searchVarNames;
+    private final int[] searchIndices;
+    private final int numColumns;
+    private final int maxSpectra;
+    private final int numBestSpectra;
+    private final SpectrumSpill spill;
+    private final SpectrumEncoding encoding;
+    private final File partialStateFile;
+    private final File[] partialStateSources;
+    private final int windowDays;
+    private final String contextKey;
+    private final String passKey;
+    private final ThreadLocal<Scratch> scratch;
+    private volatile SpectrumStoreFile.Writer partialStateWriter;
+    private volatile SpectrumStoreFile.Index partialStates;
 
     AggregatorRepresentativeSpectrum(VariableContext varCtx, String startDate, String bestObsDateName, Method method, String targetSuffix, String[] varNames, String[] searchVarNames) {
+        this(varCtx, createConfig(startDate, bestObsDateName, method, targetSuffix, varNames, searchVarNames));
+    }
+
+    AggregatorRepresentativeSpectrum(VariableContext varCtx, Config config) {
+        this(varCtx, config, createSpill(config));
+    }
+
+    /**
+     * @param spill The spill for the collected spectra, replacing the one configured by 'spillThreshold'.
+     */
+    AggregatorRepresentativeSpectrum(VariableContext varCtx, Config config, SpectrumSpill spill) {
         super(Descriptor.NAME,
-              createNames(bestObsDateName != null ? "day" : null, targetSuffix, varNames),
-              createNames(bestObsDateName, targetSuffix, varNames),
-              createNames(bestObsDateName, targetSuffix, varNames));
+              createSpatialNames(getDateName(config) != null ? "day" : null, getTargetSuffix(config), getVarNames(config)),
+              createOutputNames(config),
+              createOutputNames(config));
         if (varCtx == null) {
             throw new NullPointerException("varCtx");
         }
-        if (method == null) {
-            throw new NullPointerException("method");
+        String bestObsDateName = getDateName(config);
+        String[] varNames = config.varNames;
+        String[] searchVarNames = config.searchVarNames != null && config.searchVarNames.length > 0 ? config.searchVarNames : varNames;
+        Method[] methods = getMethods(config);
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i] == null) {
+                throw new NullPointerException("methods[" + i + "]");
+            }
+        }
+        if (config.maxSpectra < 0) {
+            throw new IllegalArgumentException("'maxSpectra' must not be negative.");
+        }
+        if (config.numBestSpectra < 0) {
+            throw new IllegalArgumentException("'numBestSpectra' must not be negative.");
+        }
+        if (config.windowDays < 0) {
+            throw new IllegalArgumentException("'windowDays' must not be negative.");
+        }
+        if (config.windowDays > 0 && bestObsDateName == null) {
+            throw new IllegalArgumentException("'windowDays' requires 'bestObsDateName'.");
+        }
+        if (config.maxSpectra > 0 && spill != null) {
+            throw new IllegalArgumentException("'maxSpectra' and 'spillThreshold' can not be combined.");
+        }
+        boolean encoded = config.encodingScales != null && config.encodingScales.length > 0;
+        if (encoded && spill != null) {
+            throw new IllegalArgumentException("'encodingScales' and 'spillThreshold' can not be combined.");
+        }
+        File partialStateFile = StringUtils.isNotNullAndNotEmpty(config.partialStateFile) ? new File(config.partialStateFile) : null;
+        File[] partialStateSources = null;
+        if (config.partialStates != null && config.partialStates.length > 0) {
+            partialStateSources = new File[config.partialStates.length];
+            for (int i = 0; i < partialStateSources.length; i++) {
+                partialStateSources[i] = new File(config.partialStates[i]);
+            }
+        }
+        if (config.maxSpectra > 0 && (partialStateFile != null || partialStateSources != null)) {
+            throw new IllegalArgumentException("'maxSpectra' can not be combined with partial states.");
+        }
+        if (partialStateFile != null && partialStateSources != null) {
+            SpectrumStoreFile.checkTargetNotSource(partialStateFile, partialStateSources);
         }
         if (bestObsDateName != null){
             try {
-                this.startDay = ProductData.UTC.parse(startDate, "yyyy-MM-dd").getDaysFraction();
+                this.startDay = ProductData.UTC.parse(config.startDate, "yyyy-MM-dd").getDaysFraction();
             } catch (ParseException e) {
                 throw new IllegalArgumentException(e);
             }
         } else {
             this.startDay = -1;
         }
-        this.method = method;
+        this.methods = methods;
         varIndices = new int[varNames.length];
         for (int i = 0; i < varNames.length; i++) {
             int varIndex = varCtx.getVariableIndex(varNames[i]);
@@ -89,7 +169,90 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
             varIndices[i] = varIndex;
         }
         this.varNames = varNames;
-        this.searchVarNames = searchVarNames;
+        searchIndices = new int[searchVarNames.length];
+        for (int i = 0; i < searchVarNames.length; i++) {
+            int searchIndex = Arrays.asList(varNames).indexOf(searchVarNames[i]);
+            if (searchIndex < 0) {
+                throw new IllegalArgumentException("searchVarNames[" + i + "] '" + searchVarNames[i] + "' is not contained in varNames");
+            }
+            searchIndices[i] = searchIndex;
+        }
+        numColumns = startDay != -1 ? varNames.length + 1 : varNames.length;
+        if (encoded) {
+            float[] scales = expandPerBand(config.encodingScales, varNames.length, "encodingScales");
+            float[] offsets = config.encodingOffsets != null && config.encodingOffsets.length > 0 ?
+                    expandPerBand(config.encodingOffsets, varNames.length, "encodingOffsets") :
+                    new float[varNames.length];
+            encoding = new SpectrumEncoding(scales, offsets, startDay != -1);
+        } else {
+            encoding = null;
+        }
+        this.maxSpectra = config.maxSpectra;
+        this.numBestSpectra = getNumBestSpectra(config);
+        this.spill = spill;
+        this.partialStateFile = partialStateFile;
+        this.partialStateSources = partialStateSources;
+        this.windowDays = config.windowDays;
+        // output feature names are unique within a binning, so they make a unique key as well
+        contextKey = "spectra." + getTemporalFeatureNames()[0];
+        passKey = "pass." + getTemporalFeatureNames()[0];
+        scratch = new ScratchThreadLocal(searchIndices.length, numBestSpectra, methods);
+    }
+
+    private static Config createConfig(String startDate, String bestObsDateName, Method method, String targetSuffix, String[] varNames, String[] searchVarNames) {
+        Config config = new Config();
+        config.startDate = startDate;
+        config.bestObsDateName = bestObsDateName;
+        config.method = method;
+        config.targetSuffix = targetSuffix;
+        config.varNames = varNames;
+        config.searchVarNames = searchVarNames;
+        return config;
+    }
+
+    private static SpectrumSpill createSpill(Config config) {
+        if (config.spillThreshold <= 0) {
+            return null;
+        }
+        File spillDirectory = StringUtils.isNotNullAndNotEmpty(config.spillDirectory) ? new File(config.spillDirectory) : null;
+        return new SpectrumSpill(config.spillThreshold * 1024L * 1024L, spillDirectory);
+    }
+
+    private static String[] getVarNames(Config config) {
+        if (config.varNames == null || config.varNames.length == 0) {
+            throw new IllegalArgumentException("'varNames' is a required parameter.");
+        }
+        return config.varNames;
+    }
+
+    private static String getTargetSuffix(Config config) {
+        return StringUtils.isNotNullAndNotEmpty(config.targetSuffix) ? config.targetSuffix : "";
+    }
+
+    private static String getDateName(Config config) {
+        return StringUtils.isNotNullAndNotEmpty(config.bestObsDateName) ? config.bestObsDateName : null;
+    }
+
+    private static int getNumBestSpectra(Config config) {
+        return config.numBestSpectra > 0 ? config.numBestSpectra : 1;
+    }
+
+    private static Method[] getMethods(Config config) {
+        if (config.methods != null && config.methods.length > 0) {
+            return config.methods;
+        }
+        return new Method[]{config.method != null ? config.method : Method.SpectralAngle};
+    }
+
+    private static float[] expandPerBand(float[] values, int numBands, String name) {
+        if (values.length == numBands) {
+            return values;
+        } else if (values.length == 1) {
+            float[] expanded = new float[numBands];
+            Arrays.fill(expanded, values[0]);
+            return expanded;
+        }
+        throw new IllegalArgumentException("'" + name + "' must have one value or one per variable in 'varNames'.");
     }
 
     private static String[] createNames(String dateName, String suffix, String... varNames) {
@@ -107,6 +270,49 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
         return featureNames.toArray(new String[featureNames.size()]);
     }
 
+    private static String[] createSpatialNames(String dateName, String suffix, String... varNames) {
+        String[] names = createNames(dateName, suffix, varNames);
+        names = Arrays.copyOf(names, names.length + 1);
+        names[names.length - 1] = NUM_OBS_NAME;
+        return names;
+    }
+
+    private static String[] createOutputNames(Config config) {
+        return createOutputNames(getDateName(config), getTargetSuffix(config), getVarNames(config), config.maxSpectra,
+                                 getNumBestSpectra(config), getMethods(config));
+    }
+
+    private static String[] createOutputNames(String dateName, String suffix, String[] varNames, int maxSpectra, int numBestSpectra, Method[] methods) {
+        String[] names = createNames(dateName, suffix, varNames);
+        ArrayList<String> methodOutputNames = new ArrayList<>(Arrays.asList(names));
+        if (numBestSpectra > 1) {
+            for (int rank = 2; rank <= numBestSpectra; rank++) {
+                for (String name : names) {
+                    methodOutputNames.add(name + "_rank" + rank);
+                }
+            }
+            String scoreName = suffix != null && suffix.length() > 0 ? SCORE_NAME + "_" + suffix : SCORE_NAME;
+            methodOutputNames.add(scoreName);
+            for (int rank = 2; rank <= numBestSpectra; rank++) {
+                methodOutputNames.add(scoreName + "_rank" + rank);
+            }
+        }
+        ArrayList<String> outputNames = new ArrayList<>();
+        if (methods.length > 1) {
+            for (Method method : methods) {
+                for (String name : methodOutputNames) {
+                    outputNames.add(name + "_" + method.name());
+                }
+            }
+        } else {
+            outputNames.addAll(methodOutputNames);
+        }
+        if (maxSpectra > 0) {
+            outputNames.add(NUM_SPECTRA_NAME);
+        }
+        return outputNames.toArray(new String[outputNames.size()]);
+    }
+
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////
 
@@ -118,33 +324,107 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
         if (startDay != -1) {
             writableVector.set(varIndices.length, Float.NaN);
         }
+        writableVector.set(numColumns, 0);
     }
 
     @Override
     public void aggregateSpatial(BinContext binContext, Observation observation, WritableVector writableVector) {
         for (int i = 0; i < varIndices.length; i++) {
-            float value = observation.get(varIndices[i]);
-            if (Float.isNaN(value)) {
+            if (Float.isNaN(observation.get(varIndices[i]))) {
                 // if any value isNaN, throw away the complete spectra
-                for (int j = 0; j < writableVector.size(); j++) {
-                    writableVector.set(j, Float.NaN);
-                }
                 return;
-            } else {
-                writableVector.set(i, value);
             }
         }
+        float numObs = writableVector.get(numColumns);
+        if (numObs == 1) {
+            // a second observation of the pass, keep the spectra to choose one of them
+            PassSpectra pass = new PassSpectra(numColumns);
+            pass.add(writableVector);
+            binContext.put(passKey, pass);
+        }
+        for (int i = 0; i < varIndices.length; i++) {
+            writableVector.set(i, observation.get(varIndices[i]));
+        }
         if (startDay != -1) {
             double mjd = observation.getMJD();
-            int day = (int) (mjd - startDay);
-            writableVector.set(varIndices.length, day);            
+            writableVector.set(varIndices.length, (int) (mjd - startDay));
+        }
+        if (numObs >= 1) {
+            PassSpectra pass = binContext.get(passKey);
+            pass.add(writableVector);
         }
+        writableVector.set(numColumns, numObs + 1);
     }
 
     @Override
     public void completeSpatial(BinContext binContext, int numSpatialObs, WritableVector writableVector) {
-        if (numSpatialObs > 1) {
-            throw new IllegalArgumentException("This aggregator only supports MOSAICKING");
+        float numObs = writableVector.get(numColumns);
+        if (numObs > 1) {
+            PassSpectra pass = binContext.get(passKey);
+            binContext.put(passKey, null);
+            int closest = pass.findClosestToMean(searchIndices);
+            for (int i = 0; i < numColumns; i++) {
+                writableVector.set(i, pass.get(closest, i));
+            }
+        }
+    }
+
+    /**
+     * The spectra (and days) of the observations of one pass in a spatial bin.
+     */
+    private static final class PassSpectra {
+
+        private final int numColumns;
+        private float[] data;
+        private int size;
+
+        PassSpectra(int numColumns) {
+            this.numColumns = numColumns;
+            this.data = new float[4 * numColumns];
+        }
+
+        void add(Vector spectrum) {
+            if (data.length < (size + 1) * numColumns) {
+                data = Arrays.copyOf(data, 2 * data.length);
+            }
+            for (int i = 0; i < numColumns; i++) {
+                data[size * numColumns + i] = spectrum.get(i);
+            }
+            size++;
+        }
+
+        float get(int row, int column) {
+            return data[row * numColumns + column];
+        }
+
+        /**
+         * @return The index of the spectrum with the smallest Euclidean distance to the mean spectrum,
+         * the first one of equal distances.
+         */
+        int findClosestToMean(int[] bandIndices) {
+            double[] mean = new double[bandIndices.length];
+            for (int row = 0; row < size; row++) {
+                for (int b = 0; b < bandIndices.length; b++) {
+                    mean[b] += get(row, bandIndices[b]);
+                }
+            }
+            for (int b = 0; b < bandIndices.length; b++) {
+                mean[b] /= size;
+            }
+            int closest = 0;
+            double minDistance = Double.POSITIVE_INFINITY;
+            for (int row = 0; row < size; row++) {
+                double distance = 0;
+                for (int b = 0; b < bandIndices.length; b++) {
+                    double d = get(row, bandIndices[b]) - mean[b];
+                    distance += d * d;
+                }
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    closest = row;
+                }
+            }
+            return closest;
         }
     }
 
@@ -152,27 +432,35 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
 
     @Override
     public void initTemporal(BinContext binContext, WritableVector writableVector) {
-        for (int i = 0; i < varNames.length; i++) {
+        for (int i = 0; i < writableVector.size(); i++) {
             writableVector.set(i, Float.NaN);
-            binContext.put(varNames[i], new GrowableVector(10));
         }
-        if (startDay != -1) {
-            writableVector.set(varNames.length, Float.NaN);
-            binContext.put("day", new GrowableVector(10));
+        SpectrumStore store = new SpectrumStore(numColumns, 10, spill, encoding);
+        if (partialStateSources != null) {
+            SpectrumStore partialState = takePartialState(binContext.getIndex());
+            if (partialState != null) {
+                store.addAll(partialState, -1, 0);
+            }
         }
+        binContext.put(contextKey, store);
     }
 
     @Override
     public void aggregateTemporal(BinContext binContext, Vector spatialVector, int numSpatialObs, WritableVector temporalVector) {
         float firstValue = spatialVector.get(0);
+        if (windowDays > 0 && !isInWindow(spatialVector.get(varNames.length))) {
+            return;
+        }
+        if (encoding != null && encoding.hasDay() && !SpectrumEncoding.canEncodeDay(spatialVector.get(varNames.length))) {
+            // like outside of the window, the day offset can not be stored
+            return;
+        }
         if (!Float.isNaN(firstValue)) {
-            for (int i = 0; i < varNames.length; i++) {
-                GrowableVector measurementsVec = binContext.get(varNames[i]);
-                measurementsVec.add(spatialVector.get(i));
-            }
-            if (startDay != -1) {
-                GrowableVector measurementsVec = binContext.get("day");
-                measurementsVec.add(spatialVector.get(varNames.length)); 
+            SpectrumStore store = binContext.get(contextKey);
+            if (maxSpectra > 0) {
+                store.addSample(spatialVector, maxSpectra, binContext.getIndex());
+            } else {
+                store.add(spatialVector);
             }
         }
     }
@@ -180,56 +468,260 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
     @Override
     public void completeTemporal(BinContext binContext, int numTemporalObs, WritableVector temporalVector) {
         // handle special cases: 0 or 1 observation
-        GrowableVector firstVector = binContext.get(varNames[0]);
-        int numSpectra = firstVector.size();
+        SpectrumStore store = binContext.get(contextKey);
+        if (maxSpectra > 0) {
+            temporalVector.set(getNumSpectraIndex(), store.getNumObserved());
+        }
+        store.load();
+        if (partialStateFile != null) {
+            try {
+                getPartialStateWriter().write(binContext.getIndex(), store);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write partial state", e);
+            }
+        }
+        selectSpectrum(store, temporalVector);
+        if (spill != null) {
+            // the spectra are not needed anymore, leave the heap budget to the bins still being aggregated
+            store.release();
+        }
+    }
+
+    private void selectSpectrum(SpectrumStore store, WritableVector temporalVector) {
+        int numSpectra = store.size();
         if (numSpectra == 0) {
             return;
         } else if (numSpectra == 1) {
-            for (int i = 0; i < varNames.length; i++) {
-                GrowableVector measurementsVec = binContext.get(varNames[i]);
-                temporalVector.set(i, measurementsVec.get(0));
-            }
-            if (startDay != -1) {
-                GrowableVector measurementsVec = binContext.get("day");
-                temporalVector.set(varNames.length, measurementsVec.get(0));
+            for (int m = 0; m < methods.length; m++) {
+                int offset = m * getMethodBlockSize();
+                setSpectrum(store, 0, offset, temporalVector);
+                if (numBestSpectra > 1) {
+                    // a single spectrum is its own median, which has the best score of every method: 0
+                    temporalVector.set(offset + numBestSpectra * numColumns, 0);
+                }
             }
             return;
         }
-        float[][] data = new float[searchVarNames.length][0];
-        for (int i = 0; i < searchVarNames.length; i++) {
-            GrowableVector vector = binContext.get(searchVarNames[i]);
-            data[i] = vector.getElements();
-        }
+        int numBands = searchIndices.length;
+        Scratch scratch = this.scratch.get();
+        scratch.ensureCapacity(numSpectra);
+        float[] spectra = scratch.spectra;
+        store.getColumns(searchIndices, spectra);
         // Calculate the median spectrum (as an intermediary step) as the spectrum of per-band median values.
         // For a set of 1 or 2 observations the median is the mean.
         // For 3 or more observations the median is the central value,
         // i.e. the middle one when values are ordered from low to high
-        double[][] allSpectra = new double[numSpectra][searchVarNames.length];
-        double[] medianSpectrum = computeMedianSpectrum(data, allSpectra);
-        int bestSpectraIndex = findBestSpectra(allSpectra, medianSpectrum);
-        if (bestSpectraIndex > -1) {
-            for (int i = 0; i < varNames.length; i++) {
-                GrowableVector measurementsVec = binContext.get(varNames[i]);
-                temporalVector.set(i, measurementsVec.get(bestSpectraIndex));
+        double[] medianSpectrum;
+        if (store.getEncoding() != null) {
+            medianSpectrum = computeMedianSpectrum(store, searchIndices, spectra, numSpectra, scratch);
+        } else {
+            medianSpectrum = computeMedianSpectrum(spectra, numSpectra, numBands, scratch.measurements, scratch.medianSpectrum);
+        }
+        int[] bestIndices = scratch.bestIndices;
+        double[] bestScores = scratch.bestScores;
+        // all methods share the collected spectra and the median, only the scores differ
+        for (int m = 0; m < methods.length; m++) {
+            Scorer scorer = scratch.scorers[m];
+            scorer.prepare(medianSpectrum);
+            scorer.prepareSpectra(spectra, numSpectra);
+            int numBest = findBestSpectra(scorer, spectra, numSpectra, numBands, bestIndices, bestScores);
+            int offset = m * getMethodBlockSize();
+            for (int rank = 0; rank < numBest; rank++) {
+                setSpectrum(store, bestIndices[rank], offset + rank * numColumns, temporalVector);
+                if (numBestSpectra > 1) {
+                    temporalVector.set(offset + numBestSpectra * numColumns + rank, (float) bestScores[rank]);
+                }
             }
-            if (startDay != -1) {
-                GrowableVector measurementsVec = binContext.get("day");
-                temporalVector.set(varNames.length, measurementsVec.get(bestSpectraIndex));
+        }
+    }
+
+    /**
+     * @return The number of temporal features written per method.
+     */
+    private int getMethodBlockSize() {
+        return numBestSpectra > 1 ? numBestSpectra * (numColumns + 1) : numColumns;
+    }
+
+    private int getNumSpectraIndex() {
+        return methods.length * getMethodBlockSize();
+    }
+
+    private SpectrumStoreFile.Writer getPartialStateWriter() throws IOException {
+        SpectrumStoreFile.Writer writer = partialStateWriter;
+        if (writer == null) {
+            synchronized (this) {
+                writer = partialStateWriter;
+                if (writer == null) {
+                    writer = createPartialStateWriter(partialStateFile);
+                    partialStateWriter = writer;
+                }
             }
         }
+        return writer;
     }
 
-    private int findBestSpectra(double[][] allSpectra, double[] medianSpectrum) {
-        int bestIndex = -1;
-        double bestValue = Double.POSITIVE_INFINITY;
-        for (int i = 0; i < allSpectra.length; i++) {
-            double value = method.compute(allSpectra[i], medianSpectrum);
-            if (value < bestValue) {
-                bestValue = value;
-                bestIndex = i;
+    private SpectrumStore takePartialState(long binIndex) {
+        try {
+            SpectrumStore state = getPartialStates().take(binIndex);
+            if (state != null && windowDays > 0) {
+                // evict the days which dropped out of the window
+                state.retainDays(getDayColumn(), 0, windowDays);
+            }
+            if (state != null && encoding != null && encoding.hasDay()) {
+                // rebased days before the start date can not be encoded
+                state.retainDays(getDayColumn(), 0, SpectrumEncoding.MAX_DAY + 1);
             }
+            return state;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read partial states", e);
+        }
+    }
+
+    private SpectrumStoreFile.Index getPartialStates() throws IOException {
+        SpectrumStoreFile.Index states = partialStates;
+        if (states == null) {
+            synchronized (this) {
+                states = partialStates;
+                if (states == null) {
+                    states = openPartialStates(partialStateSources);
+                    partialStates = states;
+                }
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Opens partial state files written with the layout and start day of this aggregator.
+     */
+    SpectrumStoreFile.Index openPartialStates(File... files) throws IOException {
+        return new SpectrumStoreFile.Index(numColumns, getDayColumn(), getPartialStateStartDay(), files);
+    }
+
+    /**
+     * Creates a partial state file with the layout and start day of this aggregator.
+     */
+    SpectrumStoreFile.Writer createPartialStateWriter(File file) throws IOException {
+        return new SpectrumStoreFile.Writer(file, numColumns, getDayColumn(), getPartialStateStartDay());
+    }
+
+    /**
+     * Computes the temporal features of a bin from a partial state, instead of from the spectra of the binning.
+     * The days outside of the window are removed from the state.
+     */
+    void completeState(SpectrumStore state, WritableVector temporalVector) {
+        for (int i = 0; i < temporalVector.size(); i++) {
+            temporalVector.set(i, Float.NaN);
+        }
+        if (windowDays > 0) {
+            state.retainDays(getDayColumn(), 0, windowDays);
+        }
+        selectSpectrum(state, temporalVector);
+    }
+
+    private boolean isInWindow(float day) {
+        return day >= 0 && day < windowDays;
+    }
+
+    private int getDayColumn() {
+        return startDay != -1 ? varNames.length : -1;
+    }
+
+    private int getPartialStateStartDay() {
+        return startDay != -1 ? startDay : 0;
+    }
+
+    private void setSpectrum(SpectrumStore store, int row, int offset, WritableVector temporalVector) {
+        for (int i = 0; i < numColumns; i++) {
+            temporalVector.set(offset + i, store.get(row, i));
+        }
+    }
+
+    /**
+     * Finds the spectra with the lowest scores, at most {@code bestIndices.length}.
+     * They are kept in a bounded buffer ordered by score, of equal scores the earlier spectrum ranks first.
+     * Spectra with a score of NaN or infinity are never chosen.
+     *
+     * @return The number of spectra found.
+     */
+    static int findBestSpectra(Scorer scorer, float[] spectra, int numSpectra, int numBands, int[] bestIndices, double[] bestScores) {
+        int maxBest = bestIndices.length;
+        int numBest = 0;
+        for (int i = 0; i < numSpectra; i++) {
+            double value = scorer.score(spectra, i * numBands);
+            double worst = numBest < maxBest ? Double.POSITIVE_INFINITY : bestScores[numBest - 1];
+            if (value < worst) {
+                int pos = numBest < maxBest ? numBest++ : numBest - 1;
+                while (pos > 0 && value < bestScores[pos - 1]) {
+                    bestScores[pos] = bestScores[pos - 1];
+                    bestIndices[pos] = bestIndices[pos - 1];
+                    pos--;
+                }
+                bestScores[pos] = value;
+                bestIndices[pos] = i;
+            }
+        }
+        return numBest;
+    }
+
+    /**
+     * Scratch memory for completing temporal bins. It is kept per thread and grows to the largest bin seen,
+     * so completing a bin does not allocate in the steady state.
+     */
+    private static final class Scratch {
+
+        final double[] medianSpectrum;
+        final Scorer[] scorers;
+        float[] spectra;
+        float[] measurements;
+        short[] codes;
+        int[] counts;
+
+        final int[] bestIndices;
+        final double[] bestScores;
+
+        Scratch(int numBands, int numBestSpectra, Method[] methods) {
+            bestIndices = new int[numBestSpectra];
+            bestScores = new double[numBestSpectra];
+            medianSpectrum = new double[numBands];
+            scorers = new Scorer[methods.length];
+            for (int i = 0; i < methods.length; i++) {
+                scorers[i] = methods[i].createScorer();
+            }
+            spectra = new float[0];
+            measurements = new float[0];
+            codes = new short[0];
+            counts = new int[0];
+        }
+
+        void ensureCapacity(int numSpectra) {
+            if (measurements.length < numSpectra) {
+                measurements = new float[numSpectra];
+                codes = new short[numSpectra];
+                spectra = new float[numSpectra * medianSpectrum.length];
+            }
+        }
+    }
+
+    /**
+     * Creates the scratch of a thread. A static class, so that pooled threads do not keep the aggregator reachable.
+     */
+    private static final class ScratchThreadLocal extends ThreadLocal<Scratch> {
+
+        private final int numBands;
+        private final int numBestSpectra;
+        private final Method[] methods;
+
+        ScratchThreadLocal(int numBands, int numBestSpectra, Method[] methods) {
+            this.numBands = numBands;
+            this.numBestSpectra = numBestSpectra;
+            this.methods = methods;
+        }
+
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(numBands, numBestSpectra, methods);
         }
-        return bestIndex;
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -243,10 +735,71 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Called once the binning is done: carries the partial states of the bins not observed in this binning forward,
+     * closes the partial state files and deletes the temporary file of spilled spectra.
+     */
+    synchronized void finish() {
+        try {
+            if (partialStateFile != null && partialStateSources != null) {
+                carryForwardPartialStates();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to carry the partial states forward", e);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * @return {@code true}, if the aggregator must be {@link #finish() finished} after the binning.
+     */
+    boolean needsFinishing() {
+        return partialStateFile != null || partialStateSources != null || spill != null;
+    }
+
+    /**
+     * Closes the partial state files and deletes the temporary file of spilled spectra.
+     */
+    synchronized void close() {
+        try {
+            if (partialStateWriter != null) {
+                partialStateWriter.close();
+                partialStateWriter = null;
+            }
+            if (partialStates != null) {
+                partialStates.close();
+                partialStates = null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close partial states", e);
+        } finally {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the partial states not taken by the binning to the new partial state file, so that bins which
+     * are not observed in this binning are not lost. The file is created even if no bin has been observed.
+     */
+    private void carryForwardPartialStates() throws IOException {
+        SpectrumStoreFile.Writer writer = getPartialStateWriter();
+        for (long binIndex : getPartialStates().getRemainingBinIndices()) {
+            SpectrumStore state = takePartialState(binIndex);
+            if (state != null && state.size() > 0) {
+                writer.write(binIndex, state);
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////
+
     @Override
     public String toString() {
         return "RepresentativeSpectrum{" +
-                "method=" + method +
+                "methods=" + Arrays.toString(methods) +
                 "varNames=" + Arrays.toString(varNames) +
                 "varIndices=" + Arrays.toString(varIndices) +
                 ", spatialFeatureNames=" + Arrays.toString(getSpatialFeatureNames()) +
@@ -269,16 +822,152 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
                 description = "The method used for finding the best representative spectra",
                 defaultValue = "SpectralAngle")
         Method method;
+        @Parameter(description = "If given, one representative spectrum is selected per method instead of using 'method'. " +
+                "The spectra are collected and their median is computed only once. " +
+                "If more than one method is given, the outputs get the method name as suffix.")
+        Method[] methods;
         @Parameter(notEmpty = true, notNull = true, description = "First day in format 'YYYY-MM-DD'")
         String startDate;
         @Parameter(defaultValue = "best_obs")
         String bestObsDateName;
+        @Parameter(description = "If greater than zero, at most this number of spectra is kept per bin. " +
+                "They are a uniform random sample of all valid spectra, from which the median and the best spectrum " +
+                "are computed. The median of a sample of m spectra deviates by about 1/sqrt(m) in quantile " +
+                "(95% confidence) from the true median. The total number of spectra is written to '" + NUM_SPECTRA_NAME + "'.",
+                defaultValue = "0")
+        int maxSpectra;
+        @Parameter(description = "The number of best spectra written, ranked by their score. If greater than one, " +
+                "the spectra of rank 2 and higher are written with the name suffix '_rank<N>', " +
+                "and the scores of all ranks are written to '" + SCORE_NAME + "'.",
+                defaultValue = "1")
+        int numBestSpectra;
+        @Parameter(description = "If greater than zero, the collected spectra are moved from the heap to a temporary file " +
+                "whenever all bins together hold more than this number of megabytes. Can not be combined with 'maxSpectra'. " +
+                "Requires the LakeAggregate operator, which deletes the file after the binning.",
+                defaultValue = "0")
+        int spillThreshold;
+        @Parameter(description = "The directory for the temporary file of spilled spectra. " +
+                "If not given, the default temporary directory is used.")
+        String spillDirectory;
+        @Parameter(description = "If given, the collected spectra are stored as 16-bit integers " +
+                "'round((value - offset) / scale)' using these scales, either one per variable in 'varNames' or one for all. " +
+                "Values outside of the representable range are clamped. With 'bestObsDateName', only the spectra of the " +
+                "256 days starting at 'startDate' are used, the day offset of other spectra can not be stored and they are dropped. " +
+                "Can not be combined with 'spillThreshold'.")
+        float[] encodingScales;
+        @Parameter(description = "The offsets of the 16-bit encoding, either one per variable in 'varNames' or one for all. " +
+                "If not given, the offsets are zero.")
+        float[] encodingOffsets;
+        @Parameter(description = "If given, the spectra collected per bin are written to this file, " +
+                "so that they can be merged with those of other periods, by the 'RepresentativeSpectrumMerge' operator " +
+                "or as 'partialStates' of a later binning. Requires the LakeAggregate operator, which completes the file " +
+                "after the binning. Can not be combined with 'maxSpectra'.")
+        String partialStateFile;
+        @Parameter(description = "Partial state files written by previous binnings, e.g. of the preceding days. " +
+                "Their spectra are added to the bins of this binning, day values are rebased to 'startDate'. " +
+                "The states of bins not observed in this binning are carried forward to 'partialStateFile' " +
+                "once the binning is finished by the LakeAggregate operator. Can not be combined with 'maxSpectra'.")
+        String[] partialStates;
+        @Parameter(description = "If greater than zero, only the spectra of this number of days starting at 'startDate' are used. " +
+                "Together with 'partialStates' and 'partialStateFile' this gives a sliding window: the state of the previous " +
+                "window is read, the days which dropped out of the window are evicted and only the new day needs to be binned.",
+                defaultValue = "0")
+        int windowDays;
 
         public Config() {
             super(Descriptor.NAME);
         }
     }
 
+    /**
+     * Collects the aggregators created by the {@link Descriptor} on the current thread, so that the operator
+     * running the binning can finish them: the partial states are written and carried forward, the files of
+     * spilled spectra are deleted. Aggregators using 'partialStateFile', 'partialStates' or 'spillThreshold'
+     * can only be created while a collector is open.
+     */
+    public static final class Collector implements Closeable {
+
+        private static final ThreadLocal<Collector> CURRENT = new ThreadLocal<>();
+
+        private final List<AggregatorRepresentativeSpectrum> aggregators = new ArrayList<>();
+
+        private Collector() {
+        }
+
+        /**
+         * Starts collecting on the current thread. Must be closed after the binning on the same thread.
+         */
+        public static Collector open() {
+            if (CURRENT.get() != null) {
+                throw new IllegalStateException("A collector is already open on this thread");
+            }
+            Collector collector = new Collector();
+            CURRENT.set(collector);
+            return collector;
+        }
+
+        static boolean add(AggregatorRepresentativeSpectrum aggregator) {
+            Collector collector = CURRENT.get();
+            if (collector == null) {
+                return false;
+            }
+            collector.aggregators.add(aggregator);
+            return true;
+        }
+
+        /**
+         * Stops collecting and finishes all collected aggregators, even if some of them fail.
+         */
+        @Override
+        public void close() {
+            CURRENT.remove();
+            // the binning may create several aggregators from one config and use only one of them,
+            // so per partial state file only the one which has written to it, or else the first, finishes it
+            List<AggregatorRepresentativeSpectrum> writing = new ArrayList<>();
+            for (AggregatorRepresentativeSpectrum aggregator : aggregators) {
+                AggregatorRepresentativeSpectrum current = findWriting(aggregator.partialStateFile, writing);
+                if (current == null) {
+                    writing.add(aggregator);
+                } else if (current.partialStateWriter == null && aggregator.partialStateWriter != null) {
+                    writing.set(writing.indexOf(current), aggregator);
+                }
+            }
+            RuntimeException failure = null;
+            for (AggregatorRepresentativeSpectrum aggregator : aggregators) {
+                try {
+                    if (writing.contains(aggregator)) {
+                        aggregator.finish();
+                    } else {
+                        aggregator.close();
+                    }
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            aggregators.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private static AggregatorRepresentativeSpectrum findWriting(File partialStateFile,
+                                                                    List<AggregatorRepresentativeSpectrum> writing) {
+            if (partialStateFile == null) {
+                return null;
+            }
+            for (AggregatorRepresentativeSpectrum aggregator : writing) {
+                if (partialStateFile.equals(aggregator.partialStateFile)) {
+                    return aggregator;
+                }
+            }
+            return null;
+        }
+    }
+
     public static class Descriptor implements AggregatorDescriptor {
 
         private static final String NAME = "RepresentativeSpectrum";
@@ -291,23 +980,13 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
         @Override
         public Aggregator createAggregator(VariableContext varCtx, AggregatorConfig aggregatorConfig) {
             Config config = (Config) aggregatorConfig;
-            if (config.varNames == null || config.varNames.length == 0) {
-                throw new IllegalArgumentException("'varNames is a required parameter'");
-            }
-            Method method = config.method != null ? config.method : Method.SpectralAngle;
-            String targetSuffix = StringUtils.isNotNullAndNotEmpty(config.targetSuffix) ? config.targetSuffix : "";
-            String[] searchVarNames= config.varNames;
-            boolean searchVarNamesGiven = config.searchVarNames != null && config.searchVarNames.length > 0;
-            if (searchVarNamesGiven) {
-                if (!Arrays.asList(config.varNames).containsAll(Arrays.asList(config.searchVarNames))) {
-                    throw new IllegalArgumentException("'searchVarNames' must be a subset of 'varNames'.");
-                }
-                searchVarNames = config.searchVarNames;
+            AggregatorRepresentativeSpectrum aggregator = new AggregatorRepresentativeSpectrum(varCtx, config);
+            if (!Collector.add(aggregator) && aggregator.needsFinishing()) {
+                aggregator.close();
+                throw new IllegalArgumentException("'partialStateFile', 'partialStates' and 'spillThreshold' " +
+                                                   "require an operator finishing the aggregators, e.g. LakeAggregate.");
             }
-
-            String bestObsDateName = StringUtils.isNotNullAndNotEmpty(config.bestObsDateName) ? config.bestObsDateName : null;
-            
-            return new AggregatorRepresentativeSpectrum(varCtx, config.startDate, bestObsDateName, method, targetSuffix, config.varNames, searchVarNames);
+            return aggregator;
         }
 
         @Override
@@ -323,29 +1002,104 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
 
         @Override
         public String[] getTargetVarNames(AggregatorConfig aggregatorConfig) {
-            Config config = (Config) aggregatorConfig;
-            String targetSuffix = StringUtils.isNotNullAndNotEmpty(config.targetSuffix) ? config.targetSuffix : "";
-            String dateName = StringUtils.isNotNullAndNotEmpty(config.bestObsDateName) ? config.bestObsDateName : null;
-            
-            return createNames(dateName, targetSuffix, config.varNames);
+            return createOutputNames((Config) aggregatorConfig);
         }
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    static double[] computeMedianSpectrum(float[][] data, double[][] allSpectra) {
-        double[] medianSpectrum = new double[allSpectra[0].length];
-        for (int i = 0; i < medianSpectrum.length; i++) {
-            float[] measurements = data[i];
-            for (int spectraIndex = 0; spectraIndex < measurements.length; spectraIndex++) {
-                allSpectra[spectraIndex][i] = measurements[spectraIndex];
+    /**
+     * Computes the per-band median of the given spectra, which are stored row-major in {@code spectra}.
+     */
+    static double[] computeMedianSpectrum(float[] spectra, int numSpectra, int numBands) {
+        return computeMedianSpectrum(spectra, numSpectra, numBands, new float[numSpectra], new double[numBands]);
+    }
+
+    /**
+     * Like {@link #computeMedianSpectrum(float[], int, int)}, but using the given arrays as scratch
+     * for the values of one band and for the resulting median spectrum.
+     */
+    static double[] computeMedianSpectrum(float[] spectra, int numSpectra, int numBands, float[] measurements, double[] medianSpectrum) {
+        for (int i = 0; i < numBands; i++) {
+            for (int spectraIndex = 0, offset = i; spectraIndex < numSpectra; spectraIndex++, offset += numBands) {
+                measurements[spectraIndex] = spectra[offset];
             }
-            Arrays.sort(measurements);
-            medianSpectrum[i] = computeMedian(measurements);
+            medianSpectrum[i] = selectMedian(measurements, numSpectra);
         }
         return medianSpectrum;
     }
 
+    /**
+     * Computes the same median spectrum as {@link #computeMedianSpectrum(float[], int, int)} for an encoded store,
+     * {@code spectra} must hold the decoded values of the given columns.
+     * Bands whose codes span a small range are counted in a histogram instead of selecting the median from the values.
+     * As decoding is monotonic, the median of the codes decodes to the median of the values.
+     */
+    private static double[] computeMedianSpectrum(SpectrumStore store, int[] columnIndices, float[] spectra, int numSpectra, Scratch scratch) {
+        SpectrumEncoding encoding = store.getEncoding();
+        int numBands = columnIndices.length;
+        short[] codes = scratch.codes;
+        for (int i = 0; i < numBands; i++) {
+            int band = columnIndices[i];
+            store.getCodes(band, codes);
+            int minCode = codes[0];
+            int maxCode = codes[0];
+            for (int j = 1; j < numSpectra; j++) {
+                int code = codes[j];
+                if (code < minCode) {
+                    minCode = code;
+                } else if (code > maxCode) {
+                    maxCode = code;
+                }
+            }
+            int range = maxCode - minCode + 1;
+            if (range <= HISTOGRAM_MAX_RANGE_FACTOR * numSpectra) {
+                if (scratch.counts.length < range) {
+                    scratch.counts = new int[Math.max(range, 2 * scratch.counts.length)];
+                }
+                scratch.medianSpectrum[i] = histogramMedian(codes, numSpectra, minCode, range, scratch.counts, encoding, band);
+            } else {
+                float[] measurements = scratch.measurements;
+                for (int spectraIndex = 0, offset = i; spectraIndex < numSpectra; spectraIndex++, offset += numBands) {
+                    measurements[spectraIndex] = spectra[offset];
+                }
+                scratch.medianSpectrum[i] = selectMedian(measurements, numSpectra);
+            }
+        }
+        return scratch.medianSpectrum;
+    }
+
+    /**
+     * Computes the median of the decoded codes by counting the codes in {@code counts}.
+     * The codes must be within {@code [minCode, minCode + range)} and must not encode NaN.
+     */
+    static float histogramMedian(short[] codes, int length, int minCode, int range, int[] counts, SpectrumEncoding encoding, int band) {
+        Arrays.fill(counts, 0, range, 0);
+        for (int i = 0; i < length; i++) {
+            counts[codes[i] - minCode]++;
+        }
+        int k = length / 2;
+        // the code of rank k (0-based), and of rank k - 1 for an even length
+        int index = 0;
+        int cumulative = counts[0];
+        while (cumulative <= k) {
+            cumulative += counts[++index];
+        }
+        float upper = encoding.decode(band, (short) (minCode + index));
+        if (length % 2 == 0) {
+            int lowerIndex = index;
+            if (cumulative - counts[index] > k - 1) {
+                lowerIndex--;
+                while (counts[lowerIndex] == 0) {
+                    lowerIndex--;
+                }
+            }
+            float lower = encoding.decode(band, (short) (minCode + lowerIndex));
+            return (upper + lower) / 2;
+        }
+        return upper;
+    }
+
     static float computeMedian(float... values) {
         if (values.length % 2 == 0) {
             return (values[values.length / 2] + values[values.length / 2 - 1]) / 2;
@@ -354,6 +1108,112 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
         }
     }
 
+    /**
+     * Computes the same median as {@link #computeMedian(float...)} on the sorted values, but without sorting.
+     * The first {@code length} elements of {@code values} are used as scratch and get reordered.
+     * The values must not contain NaN.
+     */
+    static float selectMedian(float[] values, int length) {
+        int k = length / 2;
+        select(values, 0, length - 1, k);
+        float upper = values[k];
+        if (upper == 0) {
+            upper = orderedZero(values, length, k);
+        }
+        if (length % 2 == 0) {
+            // after the selection the lower half holds the k smallest values, the lower middle is their maximum
+            float lower = values[0];
+            for (int i = 1; i < k; i++) {
+                if (values[i] > lower) {
+                    lower = values[i];
+                }
+            }
+            if (lower == 0) {
+                lower = orderedZero(values, length, k - 1);
+            }
+            return (upper + lower) / 2;
+        } else {
+            return upper;
+        }
+    }
+
+    /**
+     * Introselect: quickselect with median-of-three pivots, finishing small ranges by insertion sort
+     * and falling back to sorting if the partitioning degenerates.
+     */
+    private static void select(float[] values, int left, int right, int k) {
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(right - left + 1));
+        while (right - left >= SELECT_INSERTION_SORT_THRESHOLD) {
+            if (depthLimit-- == 0) {
+                Arrays.sort(values, left, right + 1);
+                return;
+            }
+            int mid = (left + right) >>> 1;
+            if (values[mid] < values[left]) {
+                swap(values, left, mid);
+            }
+            if (values[right] < values[left]) {
+                swap(values, left, right);
+            }
+            if (values[right] < values[mid]) {
+                swap(values, mid, right);
+            }
+            float pivot = values[mid];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (pivot < values[j]) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(values, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+        for (int i = left + 1; i <= right; i++) {
+            float value = values[i];
+            int j = i - 1;
+            while (j >= left && value < values[j]) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = value;
+        }
+    }
+
+    private static void swap(float[] values, int i, int j) {
+        float tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+    }
+
+    /**
+     * The selection does not distinguish -0.0 and 0.0, but {@link Arrays#sort(float[])} orders -0.0 first.
+     * Returns the zero with the sign it would have at {@code index} in the sorted values.
+     */
+    private static float orderedZero(float[] values, int length, int index) {
+        int numNegative = 0;
+        for (int i = 0; i < length; i++) {
+            float value = values[i];
+            if (value < 0 || (value == 0 && Float.floatToRawIntBits(value) != 0)) {
+                numNegative++;
+            }
+        }
+        return index < numNegative ? -0.0f : 0.0f;
+    }
+
     private static double mean(double sum, int n) {
         if (sum == 0) {
             return 0;
@@ -363,8 +1223,234 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
 
     }
 
+    /**
+     * Scores spectra against a median spectrum, smaller is better.
+     * A scorer is prepared once per median spectrum and then scores all spectra of the bin.
+     * It can be prepared again for the next bin, so it must not be shared between threads.
+     */
+    static abstract class Scorer {
+
+        double[] medianSpectrum;
+
+        /**
+         * Computes the invariants of the given median spectrum.
+         */
+        void prepare(double[] medianSpectrum) {
+            this.medianSpectrum = medianSpectrum;
+        }
+
+        /**
+         * Called after {@link #prepare(double[])} with all spectra which are going to be scored.
+         * Only needed by scorers comparing the spectra among each other.
+         *
+         * @param spectra    A row-major block of spectra, each having as many bands as the median spectrum.
+         * @param numSpectra The number of spectra in the block.
+         */
+        void prepareSpectra(float[] spectra, int numSpectra) {
+        }
+
+        /**
+         * @param spectra A row-major block of spectra, each having as many bands as the median spectrum.
+         * @param offset  The offset of the spectrum to score within the block.
+         */
+        abstract double score(float[] spectra, int offset);
+    }
+
+    /**
+     * Scores a spectrum by its mean Euclidean distance to the other spectra, so the best spectrum is the medoid.
+     * Up to {@link #EXACT_MAX_SPECTRA} spectra the distances to all spectra are used, which is O(n^2) per bin.
+     * For more spectra the mean distance is estimated from {@link #NUM_REFERENCES} evenly spaced reference spectra,
+     * which is O(n) per bin. Without prepared spectra the distance to the median spectrum is used.
+     */
+    private static final class MedoidScorer extends Scorer {
+
+        static final int EXACT_MAX_SPECTRA = 256;
+        static final int NUM_REFERENCES = 128;
+
+        private float[] medianReference = new float[0];
+        private float[] references;
+        private int numReferences;
+        private int referenceStride;
+
+        @Override
+        void prepare(double[] medianSpectrum) {
+            super.prepare(medianSpectrum);
+            if (medianReference.length != medianSpectrum.length) {
+                medianReference = new float[medianSpectrum.length];
+            }
+            for (int i = 0; i < medianSpectrum.length; i++) {
+                medianReference[i] = (float) medianSpectrum[i];
+            }
+            references = medianReference;
+            numReferences = 1;
+            referenceStride = 1;
+        }
+
+        @Override
+        void prepareSpectra(float[] spectra, int numSpectra) {
+            this.references = spectra;
+            if (numSpectra <= EXACT_MAX_SPECTRA) {
+                numReferences = numSpectra;
+                referenceStride = 1;
+            } else {
+                numReferences = NUM_REFERENCES;
+                referenceStride = numSpectra / NUM_REFERENCES;
+            }
+        }
+
+        @Override
+        double score(float[] spectra, int offset) {
+            int numBands = medianSpectrum.length;
+            double sum = 0;
+            for (int r = 0; r < numReferences; r++) {
+                int referenceOffset = r * referenceStride * numBands;
+                double sumSquares = 0;
+                for (int i = 0; i < numBands; i++) {
+                    double difference = spectra[offset + i] - references[referenceOffset + i];
+                    sumSquares += difference * difference;
+                }
+                sum += sqrt(sumSquares);
+            }
+            return sum / numReferences;
+        }
+    }
+
+    private static final class SpectralAngleScorer extends Scorer {
+
+        private double sqrtSumYY;
+
+        @Override
+        void prepare(double[] medianSpectrum) {
+            super.prepare(medianSpectrum);
+            double sumYY = 0;
+            for (double y : medianSpectrum) {
+                sumYY += y * y;
+            }
+            sqrtSumYY = sqrt(sumYY);
+        }
+
+        @Override
+        double score(float[] spectra, int offset) {
+            double sumXY = 0;
+            double sumXX = 0;
+            for (int i = 0; i < medianSpectrum.length; i++) {
+                double x = spectra[offset + i];
+                double y = medianSpectrum[i];
+                sumXX += x * x;
+                sumXY += x * y;
+            }
+            return acos(sumXY / (sqrt(sumXX) * sqrtSumYY));
+        }
+    }
+
+    private static final class AbsoluteDifferenceScorer extends Scorer {
+
+        @Override
+        double score(float[] spectra, int offset) {
+            double sum = 0;
+            for (int i = 0; i < medianSpectrum.length; i++) {
+                double x = spectra[offset + i];
+                double y = medianSpectrum[i];
+                sum += Math.abs((x - y) / y);
+            }
+            if (sum > 0) {
+                return sum / medianSpectrum.length;
+            }
+            return mean(sum, medianSpectrum.length);
+        }
+    }
+
+    private static final class RMSDifferenceScorer extends Scorer {
+
+        @Override
+        double score(float[] spectra, int offset) {
+            double sum = 0;
+            for (int i = 0; i < medianSpectrum.length; i++) {
+                double x = spectra[offset + i];
+                double y = medianSpectrum[i];
+                double difference = x - y;
+                sum += difference * difference;
+            }
+            if (sum > 0) {
+                return Math.sqrt(sum / medianSpectrum.length);
+            }
+            return sum;
+        }
+    }
+
+    private static final class BiasScorer extends Scorer {
+
+        @Override
+        double score(float[] spectra, int offset) {
+            double sum = 0;
+            for (int i = 0; i < medianSpectrum.length; i++) {
+                double x = spectra[offset + i];
+                double y = medianSpectrum[i];
+                sum += (x - y) / y;
+            }
+            return Math.abs(mean(sum, medianSpectrum.length));
+        }
+    }
+
+    /**
+     * Scores in a single pass over the spectrum: the sums of x, x * x and x * (y - meanY) are accumulated in double,
+     * the deviations of the median spectrum from its mean are computed once in {@link #prepare(double[])}.
+     */
+    private static final class CoeffOfDeterminationScorer extends Scorer {
+
+        private double[] deviationsY = new double[0];
+        private double sumDeviationsY;
+        private double sumYY2;
+
+        @Override
+        void prepare(double[] medianSpectrum) {
+            super.prepare(medianSpectrum);
+            int numBands = medianSpectrum.length;
+            double sumY = 0;
+            for (double y : medianSpectrum) {
+                sumY += y;
+            }
+            final double meanY = mean(sumY, numBands);
+            if (deviationsY.length != numBands) {
+                deviationsY = new double[numBands];
+            }
+            sumDeviationsY = 0;
+            sumYY2 = 0;
+            for (int i = 0; i < numBands; i++) {
+                final double yy = medianSpectrum[i] - meanY;
+                deviationsY[i] = yy;
+                sumDeviationsY += yy;
+                sumYY2 += yy * yy;
+            }
+        }
+
+        @Override
+        double score(float[] spectra, int offset) {
+            int numBands = deviationsY.length;
+            double sumX = 0;
+            double sumXX = 0;
+            double sumXYY = 0;
+            for (int i = 0; i < numBands; i++) {
+                final double x = spectra[offset + i];
+                sumX += x;
+                sumXX += x * x;
+                sumXYY += x * deviationsY[i];
+            }
+            final double meanX = mean(sumX, numBands);
+            // sum((x - meanX) * yy) and sum((x - meanX)^2), expanded
+            final double sumXXYY = sumXYY - meanX * sumDeviationsY;
+            final double sumXX2 = sumXX - meanX * sumX;
+            return 1 - ((sumXXYY * sumXXYY) / (sumXX2 * sumYY2));
+        }
+    }
+
     enum Method {
         SpectralAngle {
+            @Override
+            Scorer createScorer() {
+                return new SpectralAngleScorer();
+            }
+
             @Override
             public double compute(double[] spectrum, double[] medianSpectrum) {
                 double sumXY = 0;
@@ -381,6 +1467,11 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
             }
         },
         AbsoluteDifference {
+            @Override
+            Scorer createScorer() {
+                return new AbsoluteDifferenceScorer();
+            }
+
             @Override
             public double compute(double[] spectrum, double[] medianSpectrum) {
                 double sum = 0;
@@ -396,6 +1487,11 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
             }
         },
         RMSDifference {
+            @Override
+            Scorer createScorer() {
+                return new RMSDifferenceScorer();
+            }
+
             @Override
             public double compute(double[] spectrum, double[] medianSpectrum) {
                 double sum = 0;
@@ -412,6 +1508,11 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
             }
         },
         Bias {
+            @Override
+            Scorer createScorer() {
+                return new BiasScorer();
+            }
+
             @Override
             public double compute(double[] spectrum, double[] medianSpectrum) {
                 double sum = 0;
@@ -424,15 +1525,18 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
             }
         },
         CoeffOfDetermination {
+            @Override
+            Scorer createScorer() {
+                return new CoeffOfDeterminationScorer();
+            }
+
             @Override
             public double compute(double[] spectrum, double[] medianSpectrum) {
                 double sumX = 0;
                 double sumY = 0;
                 for (int i = 0; i < spectrum.length; i++) {
-                    double x = spectrum[i];
-                    double y = medianSpectrum[i];
-                    sumX += x;
-                    sumY += y;
+                    sumX += spectrum[i];
+                    sumY += medianSpectrum[i];
                 }
                 final double meanX = mean(sumX, spectrum.length);
                 final double meanY = mean(sumY, spectrum.length);
@@ -440,18 +1544,53 @@ public class AggregatorRepresentativeSpectrum extends AbstractAggregator {
                 double sumXX2 = 0;
                 double sumYY2 = 0;
                 for (int i = 0; i < spectrum.length; i++) {
-                    double x = spectrum[i];
-                    double y = medianSpectrum[i];
-                    final double xx = x - meanX;
-                    final double yy = y - meanY;
+                    final double xx = spectrum[i] - meanX;
+                    final double yy = medianSpectrum[i] - meanY;
                     sumXXYY += xx * yy;
                     sumXX2 += xx * xx;
                     sumYY2 += yy * yy;
                 }
                 return 1 - ((sumXXYY * sumXXYY) / (sumXX2 * sumYY2));
             }
+        },
+        Medoid {
+            @Override
+            Scorer createScorer() {
+                return new MedoidScorer();
+            }
+
+            /**
+             * Without the other spectra of the bin, this is the Euclidean distance to the median spectrum.
+             */
+            @Override
+            public double compute(double[] spectrum, double[] medianSpectrum) {
+                double sumSquares = 0;
+                for (int i = 0; i < spectrum.length; i++) {
+                    double difference = spectrum[i] - medianSpectrum[i];
+                    sumSquares += difference * difference;
+                }
+                return sqrt(sumSquares);
+            }
         };
 
+        /**
+         * @return A new, not yet prepared scorer for this method.
+         */
+        abstract Scorer createScorer();
+
+        /**
+         * @return A new scorer prepared for the given median spectrum.
+         */
+        public Scorer prepare(double[] medianSpectrum) {
+            Scorer scorer = createScorer();
+            scorer.prepare(medianSpectrum);
+            return scorer;
+        }
+
+        /**
+         * Scores a single spectrum in double precision without preparing a scorer.
+         * To score many spectra against the same median spectrum, use {@link #prepare(double[])}.
+         */
         public abstract double compute(double[] spectrum, double[] medianSpectrum);
     }
 }
@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import org.esa.snap.binning.AbstractAggregator;
+import org.esa.snap.binning.Aggregator;
+import org.esa.snap.binning.AggregatorConfig;
+import org.esa.snap.binning.AggregatorDescriptor;
+import org.esa.snap.binning.BinContext;
+import org.esa.snap.binning.Observation;
+import org.esa.snap.binning.VariableContext;
+import org.esa.snap.binning.Vector;
+import org.esa.snap.binning.WritableVector;
+import org.esa.snap.core.gpf.annotations.Parameter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An aggregator for getting one value per time slot, e.g. per month or per dekad:
+ * <p>
+ * The slot of an observation is derived from its time by a {@link SlotFunction}, the values of a slot are
+ * reduced by a {@link Reduction}. Several slot functions can be given, all their slots are computed in one pass.
+ * Within a spatial bin the last valid observation is used.
+ * <p>
+ * The observation time is kept as the year and the days since the start of that year. Unlike the absolute MJD,
+ * the day offset is small enough for a float to resolve a few seconds, so FIRST and LAST order observations
+ * that are close in time correctly.
+ */
+public class AggregatorSlots extends AbstractAggregator {
+
+    private final int varIndex;
+    private final SlotFunction[] slotFunctions;
+    private final Reduction reduction;
+    private final int[] offsets;
+    private final int numValues;
+
+    AggregatorSlots(VariableContext varCtx, String varName, SlotFunction[] slotFunctions, Reduction reduction) {
+        super(Descriptor.NAME,
+              createSpatialNames(varName, slotFunctions),
+              createTemporalNames(varName, slotFunctions, reduction),
+              createOutputNames(varName, slotFunctions));
+        if (varCtx == null) {
+            throw new NullPointerException("varCtx");
+        }
+        if (varName == null) {
+            throw new NullPointerException("varName");
+        }
+        if (reduction == null) {
+            throw new NullPointerException("reduction");
+        }
+        varIndex = varCtx.getVariableIndex(varName);
+        if (varIndex < 0) {
+            throw new IllegalArgumentException("varName '" + varName + "' does not exist");
+        }
+        this.slotFunctions = slotFunctions;
+        this.reduction = reduction;
+        offsets = new int[slotFunctions.length];
+        int offset = 0;
+        for (int i = 0; i < slotFunctions.length; i++) {
+            offsets[i] = offset;
+            offset += slotFunctions[i].getNumSlots();
+        }
+        numValues = offset;
+    }
+
+    private static String[] createSpatialNames(String varName, SlotFunction[] slotFunctions) {
+        if (slotFunctions == null || slotFunctions.length == 0) {
+            throw new IllegalArgumentException("At least one slot function must be given");
+        }
+        String[] names = new String[3 + slotFunctions.length];
+        names[0] = varName;
+        names[1] = "year";
+        names[2] = "day";
+        for (int i = 0; i < slotFunctions.length; i++) {
+            names[3 + i] = slotFunctions[i].getName();
+        }
+        return names;
+    }
+
+    private static String[] createTemporalNames(String varName, SlotFunction[] slotFunctions, Reduction reduction) {
+        String[] names = createOutputNames(varName, slotFunctions);
+        if (reduction == null) {
+            return names;
+        }
+        String[] auxiliaryNames = reduction.getAuxiliaryNames();
+        String[] temporalNames = Arrays.copyOf(names, (1 + auxiliaryNames.length) * names.length);
+        for (int a = 0; a < auxiliaryNames.length; a++) {
+            for (int i = 0; i < names.length; i++) {
+                temporalNames[(1 + a) * names.length + i] = names[i] + "_" + auxiliaryNames[a];
+            }
+        }
+        return temporalNames;
+    }
+
+    static String[] createOutputNames(String varName, SlotFunction[] slotFunctions) {
+        ArrayList<String> names = new ArrayList<>();
+        for (SlotFunction slotFunction : slotFunctions) {
+            for (int slot = 0; slot < slotFunction.getNumSlots(); slot++) {
+                names.add(String.format("%s_%s_%d", varName, slotFunction.getName(), slot + 1));
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void initSpatial(BinContext binContext, WritableVector writableVector) {
+        for (int i = 0; i < writableVector.size(); i++) {
+            writableVector.set(i, Float.NaN);
+        }
+    }
+
+    @Override
+    public void aggregateSpatial(BinContext binContext, Observation observation, WritableVector writableVector) {
+        float value = observation.get(varIndex);
+        if (Float.isNaN(value)) {
+            return;
+        }
+        double mjd = observation.getMJD();
+        int year = MjdCalendar.getYear(mjd);
+        writableVector.set(0, value);
+        writableVector.set(1, year);
+        writableVector.set(2, (float) (mjd - MjdCalendar.getYearStart(year)));
+        for (int i = 0; i < slotFunctions.length; i++) {
+            writableVector.set(3 + i, slotFunctions[i].getSlot(mjd));
+        }
+    }
+
+    @Override
+    public void completeSpatial(BinContext binContext, int numSpatialObs, WritableVector writableVector) {
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void initTemporal(BinContext binContext, WritableVector writableVector) {
+        for (int i = 0; i < numValues; i++) {
+            writableVector.set(i, Float.NaN);
+        }
+        int numAuxiliaries = reduction.getAuxiliaryNames().length;
+        for (int a = 0; a < numAuxiliaries; a++) {
+            for (int i = 0; i < numValues; i++) {
+                writableVector.set((1 + a) * numValues + i, reduction.getAuxiliaryInitValue(a));
+            }
+        }
+    }
+
+    @Override
+    public void aggregateTemporal(BinContext binContext, Vector spatialVector, int numSpatialObs, WritableVector temporalVector) {
+        float value = spatialVector.get(0);
+        if (Float.isNaN(value)) {
+            return;
+        }
+        float year = spatialVector.get(1);
+        float day = spatialVector.get(2);
+        for (int i = 0; i < slotFunctions.length; i++) {
+            int slot = (int) spatialVector.get(3 + i);
+            if (slot >= 0 && slot < slotFunctions[i].getNumSlots()) {
+                reduction.aggregate(temporalVector, offsets[i] + slot, numValues, value, year, day);
+            }
+        }
+    }
+
+    @Override
+    public void completeTemporal(BinContext binContext, int numTemporalObs, WritableVector temporalVector) {
+        if (reduction == Reduction.MEAN) {
+            for (int i = 0; i < numValues; i++) {
+                float count = temporalVector.get(numValues + i);
+                if (count > 0) {
+                    temporalVector.set(i, temporalVector.get(i) / count);
+                }
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void computeOutput(Vector temporalVector, WritableVector outputVector) {
+        for (int i = 0; i < numValues; i++) {
+            outputVector.set(i, temporalVector.get(i));
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public String toString() {
+        return "Slots{" +
+                "varIndex=" + varIndex +
+                ", slotFunctions=" + Arrays.toString(slotFunctions) +
+                ", reduction=" + reduction +
+                ", spatialFeatureNames=" + Arrays.toString(getSpatialFeatureNames()) +
+                ", temporalFeatureNames=" + Arrays.toString(getTemporalFeatureNames()) +
+                ", outputFeatureNames=" + Arrays.toString(getOutputFeatureNames()) +
+                '}';
+    }
+
+    /**
+     * Maps the time of an observation to a zero-based slot.
+     */
+    public enum SlotFunction {
+        /**
+         * The day of the month, 31 slots.
+         */
+        DAY(31) {
+            @Override
+            int getSlot(double mjd) {
+                return MjdCalendar.getDayOfMonth(mjd) - 1;
+            }
+        },
+        /**
+         * The week of the year, counted from January 1st, 53 slots.
+         */
+        WEEK(53) {
+            @Override
+            int getSlot(double mjd) {
+                return (MjdCalendar.getDayOfYear(mjd) - 1) / 7;
+            }
+        },
+        /**
+         * The dekad of the year, days 1-10, 11-20 and 21 to the end of each month, 36 slots.
+         */
+        DEKAD(36) {
+            @Override
+            int getSlot(double mjd) {
+                return 3 * MjdCalendar.getMonth(mjd) + Math.min((MjdCalendar.getDayOfMonth(mjd) - 1) / 10, 2);
+            }
+        },
+        /**
+         * The month of the year, 12 slots.
+         */
+        MONTH(12) {
+            @Override
+            int getSlot(double mjd) {
+                return MjdCalendar.getMonth(mjd);
+            }
+        },
+        /**
+         * The day of the year, 366 slots.
+         */
+        DAY_OF_YEAR(366) {
+            @Override
+            int getSlot(double mjd) {
+                return MjdCalendar.getDayOfYear(mjd) - 1;
+            }
+        };
+
+        private final int numSlots;
+
+        SlotFunction(int numSlots) {
+            this.numSlots = numSlots;
+        }
+
+        int getNumSlots() {
+            return numSlots;
+        }
+
+        String getName() {
+            return name().toLowerCase();
+        }
+
+        abstract int getSlot(double mjd);
+    }
+
+    /**
+     * Reduces the values of one slot. FIRST and LAST refer to the observation time.
+     */
+    public enum Reduction {
+        FIRST {
+            @Override
+            void aggregate(WritableVector temporalVector, int index, int numValues, float value, float year, float day) {
+                float firstYear = temporalVector.get(numValues + index);
+                if (year < firstYear || year == firstYear && day < temporalVector.get(2 * numValues + index)) {
+                    temporalVector.set(index, value);
+                    temporalVector.set(numValues + index, year);
+                    temporalVector.set(2 * numValues + index, day);
+                }
+            }
+        },
+        LAST {
+            @Override
+            void aggregate(WritableVector temporalVector, int index, int numValues, float value, float year, float day) {
+                float lastYear = temporalVector.get(numValues + index);
+                if (year > lastYear || year == lastYear && day >= temporalVector.get(2 * numValues + index)) {
+                    temporalVector.set(index, value);
+                    temporalVector.set(numValues + index, year);
+                    temporalVector.set(2 * numValues + index, day);
+                }
+            }
+        },
+        MIN {
+            @Override
+            void aggregate(WritableVector temporalVector, int index, int numValues, float value, float year, float day) {
+                float current = temporalVector.get(index);
+                if (Float.isNaN(current) || value < current) {
+                    temporalVector.set(index, value);
+                }
+            }
+        },
+        MAX {
+            @Override
+            void aggregate(WritableVector temporalVector, int index, int numValues, float value, float year, float day) {
+                float current = temporalVector.get(index);
+                if (Float.isNaN(current) || value > current) {
+                    temporalVector.set(index, value);
+                }
+            }
+        },
+        MEAN {
+            @Override
+            void aggregate(WritableVector temporalVector, int index, int numValues, float value, float year, float day) {
+                float sum = temporalVector.get(index);
+                temporalVector.set(index, Float.isNaN(sum) ? value : sum + value);
+                temporalVector.set(numValues + index, temporalVector.get(numValues + index) + 1);
+            }
+        };
+
+        /**
+         * @return The names of the auxiliary values kept per slot, FIRST and LAST keep the time of the value.
+         */
+        String[] getAuxiliaryNames() {
+            switch (this) {
+                case FIRST:
+                case LAST:
+                    return new String[]{"year", "day"};
+                case MEAN:
+                    return new String[]{"count"};
+                default:
+                    return new String[0];
+            }
+        }
+
+        float getAuxiliaryInitValue(int auxiliaryIndex) {
+            if (auxiliaryIndex == 0 && this == FIRST) {
+                return Float.POSITIVE_INFINITY;
+            }
+            if (auxiliaryIndex == 0 && this == LAST) {
+                return Float.NEGATIVE_INFINITY;
+            }
+            return 0;
+        }
+
+        /**
+         * Aggregates the value into the slot at {@code index}, the auxiliary values of the slot are at
+         * {@code numValues + index}, {@code 2 * numValues + index} and so on.
+         *
+         * @param year The year of the observation.
+         * @param day  The days since the start of the year of the observation.
+         */
+        abstract void aggregate(WritableVector temporalVector, int index, int numValues, float value, float year, float day);
+    }
+
+    public static class Config extends AggregatorConfig {
+
+        @Parameter(notEmpty = true, notNull = true, description = "The variable to aggregate.")
+        String varName;
+        @Parameter(description = "The slot layouts, all of them are computed in one pass. " +
+                "The outputs are named '<varName>_<slotFunction>_<slot>' with slots starting at 1.",
+                defaultValue = "MONTH")
+        SlotFunction[] slotFunctions;
+        @Parameter(description = "The reduction of the values within one slot.", defaultValue = "FIRST")
+        Reduction reduction;
+
+        public Config() {
+            super(Descriptor.NAME);
+        }
+    }
+
+    public static class Descriptor implements AggregatorDescriptor {
+
+        public static final String NAME = "Slots";
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public Aggregator createAggregator(VariableContext varCtx, AggregatorConfig aggregatorConfig) {
+            Config config = (Config) aggregatorConfig;
+            return new AggregatorSlots(varCtx, config.varName, getSlotFunctions(config), getReduction(config));
+        }
+
+        @Override
+        public AggregatorConfig createConfig() {
+            return new Config();
+        }
+
+        @Override
+        public String[] getSourceVarNames(AggregatorConfig aggregatorConfig) {
+            Config config = (Config) aggregatorConfig;
+            return new String[]{config.varName};
+        }
+
+        @Override
+        public String[] getTargetVarNames(AggregatorConfig aggregatorConfig) {
+            Config config = (Config) aggregatorConfig;
+            return createOutputNames(config.varName, getSlotFunctions(config));
+        }
+
+        private static SlotFunction[] getSlotFunctions(Config config) {
+            if (config.slotFunctions != null && config.slotFunctions.length > 0) {
+                return config.slotFunctions;
+            }
+            return new SlotFunction[]{SlotFunction.MONTH};
+        }
+
+        private static Reduction getReduction(Config config) {
+            return config.reduction != null ? config.reduction : Reduction.FIRST;
+        }
+    }
+}
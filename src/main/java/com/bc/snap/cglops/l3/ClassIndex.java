@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+/**
+ * Finds the index of a class for an observed value in constant time.
+ * <p>
+ * A value matches a class if {@code value == classes[i]} in float arithmetic, like a linear scan would find it.
+ * Such a value is integral, so the classes are keyed by their int value after rounding to float.
+ * Closely spaced keys are looked up in a dense table, sparse keys in an open addressing hash table.
+ * If several classes have the same key, the first one is found.
+ */
+final class ClassIndex {
+
+    private static final float KEY_LIMIT = 0x1p31f;
+
+    private final int minKey;
+    // dense: index + 1 per key offset, 0 if no class; hashed: index + 1 per slot, 0 if empty
+    private final int[] indices;
+    private final int[] keys;
+    private final int mask;
+
+    ClassIndex(int[] classes) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int c : classes) {
+            int key = key(c);
+            min = Math.min(min, key);
+            max = Math.max(max, key);
+        }
+        if (classes.length > 0 && max - min < Math.max(64, 8L * classes.length)) {
+            minKey = (int) min;
+            indices = new int[(int) (max - min + 1)];
+            keys = null;
+            mask = 0;
+            for (int i = 0; i < classes.length; i++) {
+                int offset = key(classes[i]) - minKey;
+                if (indices[offset] == 0) {
+                    indices[offset] = i + 1;
+                }
+            }
+        } else {
+            minKey = 0;
+            int capacity = Integer.highestOneBit(Math.max(1, classes.length) * 4 - 1) << 1;
+            indices = new int[capacity];
+            keys = new int[capacity];
+            mask = capacity - 1;
+            for (int i = 0; i < classes.length; i++) {
+                int key = key(classes[i]);
+                int slot = hash(key) & mask;
+                while (indices[slot] != 0 && keys[slot] != key) {
+                    slot = (slot + 1) & mask;
+                }
+                if (indices[slot] == 0) {
+                    keys[slot] = key;
+                    indices[slot] = i + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The index of the first class equal to the value, or -1 if there is none.
+     */
+    int indexOf(float value) {
+        // NaN, non-integral values and values outside of the key range never equal a class
+        if (!(value >= -KEY_LIMIT && value <= KEY_LIMIT)) {
+            return -1;
+        }
+        int key = (int) value;
+        if (key != value) {
+            return -1;
+        }
+        if (keys == null) {
+            long offset = (long) key - minKey;
+            if (offset < 0 || offset >= indices.length) {
+                return -1;
+            }
+            return indices[(int) offset] - 1;
+        }
+        int slot = hash(key) & mask;
+        while (indices[slot] != 0) {
+            if (keys[slot] == key) {
+                return indices[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int key(int c) {
+        return (int) (float) c;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
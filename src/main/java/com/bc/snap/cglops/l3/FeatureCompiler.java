@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import org.esa.snap.core.jexp.EvalEnv;
+import org.esa.snap.core.jexp.Symbol;
+import org.esa.snap.core.jexp.Term;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Compiles the parsed expressions of {@link FeatureMath} into a sequence of steps. Each step is a method handle
+ * of type {@code (FeatureEvalEnv)double}, combined from handles of primitive operations, which the JIT compiles
+ * into one piece of code, and stores its value in a result of the {@link FeatureEvalEnv}.
+ * <p>
+ * Feature references, the floating point arithmetic, comparisons, conditionals and the common math functions
+ * are compiled. Every other term is evaluated by the interpreter, so any expression can be compiled.
+ * The handles compute exactly the same values as the interpreter, which evaluates floating point terms in double
+ * precision as well.
+ * <p>
+ * Subterms which do not depend on features or outputs are folded into constants. Subterms occurring more than
+ * once in all expressions are computed by a step of their own, once per cell, and read from its result.
+ * The results {@code 0} to {@code numOutputs - 1} hold the outputs, rounded to float, as they are written
+ * to the output vector.
+ */
+final class FeatureCompiler {
+
+    private static final Set<String> NON_DETERMINISTIC_FUNCTIONS =
+            new HashSet<>(Arrays.asList("random_gaussian", "random_uniform"));
+
+    private static final MethodType EVAL_D_TYPE = methodType(double.class, FeatureEvalEnv.class);
+    private static final MethodType EVAL_B_TYPE = methodType(boolean.class, FeatureEvalEnv.class);
+
+    private static final MethodHandle GET_VALUE;
+    private static final MethodHandle GET_RESULT;
+    private static final MethodHandle TO_FLOAT;
+    private static final MethodHandle TERM_EVAL_D;
+    private static final MethodHandle TERM_EVAL_B;
+    private static final MethodHandle IS_TRUE;
+    private static final MethodHandle NEG;
+    private static final MethodHandle ADD;
+    private static final MethodHandle SUB;
+    private static final MethodHandle MUL;
+    private static final MethodHandle DIV;
+    private static final MethodHandle GT;
+    private static final MethodHandle GE;
+    private static final MethodHandle LT;
+    private static final MethodHandle LE;
+
+    private static final String[] UNARY_FUNCTIONS = {"sqrt", "exp", "log", "log10", "abs"};
+    private static final String[] BINARY_FUNCTIONS = {"pow", "min", "max"};
+    private static final MethodHandle[] UNARY_FUNCTION_HANDLES;
+    private static final MethodHandle[] BINARY_FUNCTION_HANDLES;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType unaryType = methodType(double.class, double.class);
+        MethodType binaryType = methodType(double.class, double.class, double.class);
+        MethodType compareType = methodType(boolean.class, double.class, double.class);
+        try {
+            GET_VALUE = lookup.findVirtual(FeatureEvalEnv.class, "getValue", methodType(float.class, int.class));
+            GET_RESULT = lookup.findVirtual(FeatureEvalEnv.class, "getResult", methodType(double.class, int.class));
+            TO_FLOAT = lookup.findStatic(FeatureCompiler.class, "toFloat", unaryType);
+            TERM_EVAL_D = lookup.findVirtual(Term.class, "evalD", methodType(double.class, EvalEnv.class));
+            TERM_EVAL_B = lookup.findVirtual(Term.class, "evalB", methodType(boolean.class, EvalEnv.class));
+            IS_TRUE = lookup.findStatic(FeatureCompiler.class, "isTrue", methodType(boolean.class, double.class));
+            NEG = lookup.findStatic(FeatureCompiler.class, "neg", unaryType);
+            ADD = lookup.findStatic(FeatureCompiler.class, "add", binaryType);
+            SUB = lookup.findStatic(FeatureCompiler.class, "sub", binaryType);
+            MUL = lookup.findStatic(FeatureCompiler.class, "mul", binaryType);
+            DIV = lookup.findStatic(FeatureCompiler.class, "div", binaryType);
+            GT = lookup.findStatic(FeatureCompiler.class, "gt", compareType);
+            GE = lookup.findStatic(FeatureCompiler.class, "ge", compareType);
+            LT = lookup.findStatic(FeatureCompiler.class, "lt", compareType);
+            LE = lookup.findStatic(FeatureCompiler.class, "le", compareType);
+            UNARY_FUNCTION_HANDLES = new MethodHandle[UNARY_FUNCTIONS.length];
+            for (int i = 0; i < UNARY_FUNCTIONS.length; i++) {
+                UNARY_FUNCTION_HANDLES[i] = lookup.findStatic(Math.class, UNARY_FUNCTIONS[i], unaryType);
+            }
+            BINARY_FUNCTION_HANDLES = new MethodHandle[BINARY_FUNCTIONS.length];
+            for (int i = 0; i < BINARY_FUNCTIONS.length; i++) {
+                BINARY_FUNCTION_HANDLES[i] = lookup.findStatic(Math.class, BINARY_FUNCTIONS[i], binaryType);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final int numOutputs;
+    private final Map<Term, String> termKeys;
+    private final Map<String, Integer> termCounts;
+    private final Map<String, Integer> sharedResults;
+    private final List<MethodHandle> steps;
+    private final List<Integer> stepResults;
+    private final FeatureEvalEnv foldingEnv;
+
+    FeatureCompiler(int numOutputs) {
+        this.numOutputs = numOutputs;
+        this.termKeys = new IdentityHashMap<>();
+        this.termCounts = new HashMap<>();
+        this.sharedResults = new HashMap<>();
+        this.steps = new ArrayList<>();
+        this.stepResults = new ArrayList<>();
+        this.foldingEnv = new FeatureEvalEnv(0);
+    }
+
+    /**
+     * Registers the term of an expression, so that its subterms can be shared with the other expressions.
+     * All terms must be registered before the first one is compiled.
+     */
+    void register(Term term) {
+        String key = getKey(term);
+        Integer count = termCounts.get(key);
+        termCounts.put(key, count == null ? 1 : count + 1);
+        for (Term child : term.getChildren()) {
+            register(child);
+        }
+    }
+
+    /**
+     * Adds the step computing the given output by the compiled term.
+     */
+    void compile(int outputIndex, Term term) {
+        addStep(outputIndex, MethodHandles.filterReturnValue(compileD(term), TO_FLOAT));
+    }
+
+    /**
+     * Adds the step computing the given output by the interpreter.
+     */
+    void interpret(int outputIndex, Term term) {
+        addStep(outputIndex, MethodHandles.filterReturnValue(interpretD(term), TO_FLOAT));
+    }
+
+    int getNumResults() {
+        return numOutputs + sharedResults.size();
+    }
+
+    MethodHandle[] getSteps() {
+        return steps.toArray(new MethodHandle[steps.size()]);
+    }
+
+    int[] getStepResults() {
+        int[] result = new int[stepResults.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = stepResults.get(i);
+        }
+        return result;
+    }
+
+    private void addStep(int resultIndex, MethodHandle step) {
+        steps.add(step);
+        stepResults.add(resultIndex);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private MethodHandle compileD(Term term) {
+        if (isConstant(term)) {
+            try {
+                double value = term.evalD(foldingEnv);
+                return MethodHandles.dropArguments(MethodHandles.constant(double.class, value), 0, FeatureEvalEnv.class);
+            } catch (RuntimeException e) {
+                // evaluated per cell, as the interpreter does
+            }
+        } else if (isShareable(term)) {
+            String key = getKey(term);
+            Integer resultIndex = sharedResults.get(key);
+            if (resultIndex == null) {
+                MethodHandle step = translateD(term);
+                resultIndex = numOutputs + sharedResults.size();
+                addStep(resultIndex, step);
+                sharedResults.put(key, resultIndex);
+            }
+            return getResult(resultIndex);
+        }
+        return translateD(term);
+    }
+
+    private MethodHandle translateD(Term term) {
+        if (term instanceof Term.Ref) {
+            Symbol symbol = ((Term.Ref) term).getSymbol();
+            if (symbol instanceof FeatureSymbol) {
+                MethodHandle getValue = MethodHandles.insertArguments(GET_VALUE, 1, ((FeatureSymbol) symbol).getIndex());
+                return getValue.asType(EVAL_D_TYPE);
+            } else if (symbol instanceof OutputSymbol) {
+                return getResult(((OutputSymbol) symbol).getIndex());
+            }
+        } else if (term.isD()) {
+            Term[] args = term.getChildren();
+            if (term instanceof Term.Neg) {
+                return MethodHandles.filterReturnValue(compileD(args[0]), NEG);
+            } else if (term instanceof Term.Add) {
+                return combine(ADD, compileD(args[0]), compileD(args[1]));
+            } else if (term instanceof Term.Sub) {
+                return combine(SUB, compileD(args[0]), compileD(args[1]));
+            } else if (term instanceof Term.Mul) {
+                return combine(MUL, compileD(args[0]), compileD(args[1]));
+            } else if (term instanceof Term.Div) {
+                return combine(DIV, compileD(args[0]), compileD(args[1]));
+            } else if (term instanceof Term.Cond) {
+                return MethodHandles.guardWithTest(compileB(args[0]), compileD(args[1]), compileD(args[2]));
+            } else if (term instanceof Term.Call) {
+                MethodHandle handle = compileCall((Term.Call) term, args);
+                if (handle != null) {
+                    return handle;
+                }
+            }
+        }
+        return interpretD(term);
+    }
+
+    private MethodHandle compileB(Term term) {
+        if (isConstant(term)) {
+            try {
+                boolean value = term.evalB(foldingEnv);
+                return MethodHandles.dropArguments(MethodHandles.constant(boolean.class, value), 0, FeatureEvalEnv.class);
+            } catch (RuntimeException e) {
+                // evaluated per cell, as the interpreter does
+            }
+        }
+        if (term instanceof Term.GtD) {
+            return combine(GT, compileArg(term, 0), compileArg(term, 1));
+        } else if (term instanceof Term.GeD) {
+            return combine(GE, compileArg(term, 0), compileArg(term, 1));
+        } else if (term instanceof Term.LtD) {
+            return combine(LT, compileArg(term, 0), compileArg(term, 1));
+        } else if (term instanceof Term.LeD) {
+            return combine(LE, compileArg(term, 0), compileArg(term, 1));
+        } else if (term instanceof Term.Ref && isVariable(((Term.Ref) term).getSymbol())) {
+            return MethodHandles.filterReturnValue(translateD(term), IS_TRUE);
+        }
+        return TERM_EVAL_B.bindTo(term).asType(EVAL_B_TYPE);
+    }
+
+    private MethodHandle compileArg(Term term, int index) {
+        return compileD(term.getChildren()[index]);
+    }
+
+    private MethodHandle compileCall(Term.Call call, Term[] args) {
+        String functionName = call.getFunction().getName();
+        if (args.length == 1) {
+            for (int i = 0; i < UNARY_FUNCTIONS.length; i++) {
+                if (UNARY_FUNCTIONS[i].equals(functionName)) {
+                    return MethodHandles.filterReturnValue(compileD(args[0]), UNARY_FUNCTION_HANDLES[i]);
+                }
+            }
+        } else if (args.length == 2) {
+            for (int i = 0; i < BINARY_FUNCTIONS.length; i++) {
+                if (BINARY_FUNCTIONS[i].equals(functionName)) {
+                    return combine(BINARY_FUNCTION_HANDLES[i], compileD(args[0]), compileD(args[1]));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static MethodHandle interpretD(Term term) {
+        return TERM_EVAL_D.bindTo(term).asType(EVAL_D_TYPE);
+    }
+
+    private static MethodHandle getResult(int resultIndex) {
+        return MethodHandles.insertArguments(GET_RESULT, 1, resultIndex);
+    }
+
+    /**
+     * @return {@code true} if the term neither depends on features or outputs nor calls a non-deterministic function.
+     */
+    private static boolean isConstant(Term term) {
+        if (term instanceof Term.Ref && isVariable(((Term.Ref) term).getSymbol())) {
+            return false;
+        }
+        if (isNonDeterministicCall(term)) {
+            return false;
+        }
+        for (Term child : term.getChildren()) {
+            if (!isConstant(child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isShareable(Term term) {
+        return !(term instanceof Term.Ref) && termCounts.get(getKey(term)) > 1 && isDeterministic(term);
+    }
+
+    private static boolean isDeterministic(Term term) {
+        if (isNonDeterministicCall(term)) {
+            return false;
+        }
+        for (Term child : term.getChildren()) {
+            if (!isDeterministic(child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNonDeterministicCall(Term term) {
+        return term instanceof Term.Call && NON_DETERMINISTIC_FUNCTIONS.contains(((Term.Call) term).getFunction().getName());
+    }
+
+    private static boolean isVariable(Symbol symbol) {
+        return symbol instanceof FeatureSymbol || symbol instanceof OutputSymbol;
+    }
+
+    /**
+     * @return A key which is equal for terms computing the same value.
+     */
+    private String getKey(Term term) {
+        String key = termKeys.get(term);
+        if (key == null) {
+            StringBuilder sb = new StringBuilder(term.getClass().getSimpleName());
+            sb.append(':').append(term.getRetType());
+            if (term instanceof Term.Ref) {
+                Symbol symbol = ((Term.Ref) term).getSymbol();
+                sb.append(':').append(symbol.getClass().getSimpleName()).append(':').append(symbol.getName());
+                if (symbol instanceof FeatureSymbol) {
+                    sb.append(':').append(((FeatureSymbol) symbol).getIndex());
+                } else if (symbol instanceof OutputSymbol) {
+                    sb.append(':').append(((OutputSymbol) symbol).getIndex());
+                }
+            } else if (term instanceof Term.Call) {
+                sb.append(':').append(((Term.Call) term).getFunction().getName());
+            } else if (term.getChildren().length == 0) {
+                sb.append(':').append(term.evalS(foldingEnv));
+            }
+            sb.append('(');
+            for (Term child : term.getChildren()) {
+                sb.append(getKey(child)).append(',');
+            }
+            key = sb.append(')').toString();
+            termKeys.put(term, key);
+        }
+        return key;
+    }
+
+    /**
+     * @return A handle of type {@code (FeatureEvalEnv)R} applying the operation of type {@code (double,double)R}
+     * to the results of both argument handles.
+     */
+    private static MethodHandle combine(MethodHandle operation, MethodHandle arg1, MethodHandle arg2) {
+        MethodHandle handle = MethodHandles.filterArguments(operation, 0, arg1, arg2);
+        return MethodHandles.permuteArguments(handle, methodType(operation.type().returnType(), FeatureEvalEnv.class), 0, 0);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static double toFloat(double value) {
+        return (float) value;
+    }
+
+    private static boolean isTrue(double value) {
+        return value != 0.0;
+    }
+
+    private static double neg(double value) {
+        return -value;
+    }
+
+    private static double add(double value1, double value2) {
+        return value1 + value2;
+    }
+
+    private static double sub(double value1, double value2) {
+        return value1 - value2;
+    }
+
+    private static double mul(double value1, double value2) {
+        return value1 * value2;
+    }
+
+    private static double div(double value1, double value2) {
+        return value1 / value2;
+    }
+
+    private static boolean gt(double value1, double value2) {
+        return value1 > value2;
+    }
+
+    private static boolean ge(double value1, double value2) {
+        return value1 >= value2;
+    }
+
+    private static boolean lt(double value1, double value2) {
+        return value1 < value2;
+    }
+
+    private static boolean le(double value1, double value2) {
+        return value1 <= value2;
+    }
+}
@@ -20,32 +20,35 @@ package com.bc.snap.cglops.l3;
 import org.esa.snap.binning.Vector;
 import org.esa.snap.core.jexp.EvalEnv;
 
-import java.util.HashMap;
-
 /**
  * Environment for evaluating expressions that use a record's attribute values.
+ * The values are read directly from the input vector by the feature index of the symbols.
+ * The results of outputs and shared subterms are kept in a result array.
  *
  * @author Norman Fomferra
  */
 class FeatureEvalEnv implements EvalEnv {
 
-    private final HashMap<String, Object> env;
-    private final String[] variableNames;
+    private final double[] results;
+    private Vector inputVector;
 
-    public FeatureEvalEnv(String[] variableNames) {
-        this.variableNames = variableNames;
-        this.env = new HashMap<>(31);
+    public FeatureEvalEnv(int numResults) {
+        this.results = new double[numResults];
     }
 
     public void setContext(Vector inputVector) {
-        for (int i = 0; i < variableNames.length; i++) {
-            String name = variableNames[i];
-            Object value = inputVector.get(i);
-            env.put(name, value);
-        }
+        this.inputVector = inputVector;
+    }
+
+    public float getValue(int index) {
+        return inputVector.get(index);
+    }
+
+    public double getResult(int index) {
+        return results[index];
     }
 
-    public Object getValue(String name) {
-        return env.get(name);
+    public void setResult(int index, double value) {
+        results[index] = value;
     }
 }
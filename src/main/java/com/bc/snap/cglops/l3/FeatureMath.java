@@ -29,24 +29,51 @@ import org.esa.snap.core.jexp.ParseException;
 import org.esa.snap.core.jexp.Term;
 import org.esa.snap.core.jexp.impl.ParserImpl;
 
+import java.lang.invoke.MethodHandle;
+
 /**
- * Bandmath in output features of a l3 binning
+ * Bandmath in output features of a l3 binning.
+ * <p>
+ * Expressions may reference the outputs of the preceding expressions, input features take precedence
+ * over outputs of the same name. By default, the parsed expressions are compiled by the {@link FeatureCompiler},
+ * which computes subterms shared by several expressions only once per cell, otherwise they are interpreted.
  */
 public class FeatureMath extends CellProcessor {
 
-    private final Term[] compiledExprs;
+    private final int numOutputs;
+    private final MethodHandle[] steps;
+    private final int[] stepResults;
     private final FeatureEvalEnv evalEnv;
 
     public FeatureMath(VariableContext varCtx, VariableConfig... variableConfigs) {
+        this(varCtx, true, variableConfigs);
+    }
+
+    public FeatureMath(VariableContext varCtx, boolean compile, VariableConfig... variableConfigs) {
         super(getOutputFeatureNames(variableConfigs));
         try {
             VariableContextNamespace namespace = new VariableContextNamespace(varCtx);
             ParserImpl parser = new ParserImpl(namespace, false);
-            evalEnv = new FeatureEvalEnv(namespace.getVariableNames());
-            compiledExprs = new Term[variableConfigs.length];
+            numOutputs = variableConfigs.length;
+            Term[] terms = new Term[numOutputs];
             for (int i = 0; i < variableConfigs.length; i++) {
-                compiledExprs[i] = parser.parse(variableConfigs[i].getExpr());
+                terms[i] = parser.parse(variableConfigs[i].getExpr());
+                namespace.registerOutput(variableConfigs[i].getName().trim(), i);
+            }
+            FeatureCompiler compiler = new FeatureCompiler(terms.length);
+            for (Term term : terms) {
+                compiler.register(term);
+            }
+            for (int i = 0; i < terms.length; i++) {
+                if (compile) {
+                    compiler.compile(i, terms[i]);
+                } else {
+                    compiler.interpret(i, terms[i]);
+                }
             }
+            steps = compiler.getSteps();
+            stepResults = compiler.getStepResults();
+            evalEnv = new FeatureEvalEnv(compiler.getNumResults());
         } catch (ParseException e) {
             throw new IllegalArgumentException(e);
         }
@@ -63,17 +90,33 @@ public class FeatureMath extends CellProcessor {
     @Override
     public void compute(Vector inputVector, WritableVector outputVector) {
         evalEnv.setContext(inputVector);
-        for (int i = 0; i < compiledExprs.length; i++) {
-            Term term = compiledExprs[i];
-            float value = (float) term.evalD(evalEnv);
+        for (int i = 0; i < steps.length; i++) {
+            evalEnv.setResult(stepResults[i], evalD(steps[i]));
+        }
+        for (int i = 0; i < numOutputs; i++) {
+            float value = (float) evalEnv.getResult(i);
             outputVector.set(i, value);
         }
     }
 
+    private double evalD(MethodHandle step) {
+        try {
+            return (double) step.invokeExact(evalEnv);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
     public static class Config extends CellProcessorConfig {
 
         @Parameter(alias = "variables", itemAlias = "variable")
         private VariableConfig[] variableConfigs;
+        @Parameter(description = "If true, the expressions are compiled, otherwise they are interpreted. " +
+                "Both give the same results, compiled expressions are faster.",
+                defaultValue = "true")
+        private Boolean compile;
 
         public VariableConfig[] getVariableConfigs() {
             return variableConfigs;
@@ -92,7 +135,8 @@ public class FeatureMath extends CellProcessor {
         @Override
         public CellProcessor createCellProcessor(VariableContext varCtx, CellProcessorConfig cellProcessorConfig) {
             Config config = (Config) cellProcessorConfig;
-            return new FeatureMath(varCtx, config.variableConfigs);
+            boolean compile = config.compile == null || config.compile;
+            return new FeatureMath(varCtx, compile, config.variableConfigs);
         }
 
         @Override
@@ -27,8 +27,15 @@ import org.esa.snap.core.jexp.impl.AbstractSymbol;
  */
 class FeatureSymbol extends AbstractSymbol {
 
-    public FeatureSymbol(String variableName) {
+    private final int index;
+
+    public FeatureSymbol(String variableName, int index) {
         super(variableName, Term.TYPE_D);
+        this.index = index;
+    }
+
+    public int getIndex() {
+        return index;
     }
 
     @Override
@@ -55,6 +62,6 @@ class FeatureSymbol extends AbstractSymbol {
 
     private float getFloatValue(EvalEnv env) {
         FeatureEvalEnv recordEvalEnv = (FeatureEvalEnv) env;
-        return (float) recordEvalEnv.getValue(getName());
+        return recordEvalEnv.getValue(index);
     }
 }
@@ -26,14 +26,14 @@ import org.esa.snap.binning.Observation;
 import org.esa.snap.binning.VariableContext;
 import org.esa.snap.binning.Vector;
 import org.esa.snap.binning.WritableVector;
-import org.esa.snap.core.datamodel.ProductData;
 import org.esa.snap.core.gpf.annotations.Parameter;
 
 import java.util.Arrays;
-import java.util.Calendar;
 
 /**
  * An aggregator for getting one value per month.
+ * <p>
+ * See {@link AggregatorSlots} for other slots than months and other reductions.
  */
 public class FirstN extends AbstractAggregator {
 
@@ -65,9 +65,7 @@ public class FirstN extends AbstractAggregator {
     @Override
     public void aggregateSpatial(BinContext binContext, Observation observation, WritableVector writableVector) {
         writableVector.set(0, observation.get(varIndex));
-        double mjd = observation.getMJD();
-        ProductData.UTC utc = new ProductData.UTC(mjd);
-        writableVector.set(1, utc.getAsCalendar().get(Calendar.MONTH));
+        writableVector.set(1, MjdCalendar.getMonth(observation.getMJD()));
     }
 
     @Override
@@ -85,7 +83,10 @@ public class FirstN extends AbstractAggregator {
     public void aggregateTemporal(BinContext binContext, Vector spatialVector, int numSpatialObs, WritableVector temporalVector) {
         float value = spatialVector.get(0);
         float month = spatialVector.get(1);
-        temporalVector.set((int)month, value);
+        // only the first n months have a slot
+        if (month >= 0 && month < n) {
+            temporalVector.set((int) month, value);
+        }
     }
 
     @Override
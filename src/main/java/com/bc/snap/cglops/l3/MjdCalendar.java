@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import org.esa.snap.core.datamodel.ProductData;
+
+import java.util.Calendar;
+
+/**
+ * Calendar fields of the observation time (MJD2000, UTC) without allocating a {@link Calendar} per observation.
+ * <p>
+ * The fields are computed arithmetically for the (proleptic) Gregorian calendar. Times within a few milliseconds
+ * of midnight, where the rounding of {@link ProductData.UTC} decides the day, and dates before the Gregorian
+ * reform are delegated to {@link ProductData.UTC#getAsCalendar()}, so the results are always the same as those
+ * of the calendar.
+ */
+final class MjdCalendar {
+
+    // 2000-01-01 in days since 1970-01-01
+    private static final int MJD2000_EPOCH_DAY = 10957;
+    // 1583-01-01 in days since 1970-01-01, the first full year of the Gregorian calendar
+    private static final int GREGORIAN_EPOCH_DAY = -141349;
+    private static final double MIDNIGHT_MARGIN = 2.0 / (24 * 60 * 60 * 1000);
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private MjdCalendar() {
+    }
+
+    /**
+     * @return The year, like {@link Calendar#YEAR}.
+     */
+    static int getYear(double mjd) {
+        int epochDay = getEpochDay(mjd);
+        if (epochDay < GREGORIAN_EPOCH_DAY) {
+            return getCalendar(mjd).get(Calendar.YEAR);
+        }
+        return (int) (civil(epochDay) >> 16);
+    }
+
+    /**
+     * @return The zero-based month, like {@link Calendar#MONTH}.
+     */
+    static int getMonth(double mjd) {
+        int epochDay = getEpochDay(mjd);
+        if (epochDay < GREGORIAN_EPOCH_DAY) {
+            return getCalendar(mjd).get(Calendar.MONTH);
+        }
+        return (int) ((civil(epochDay) >> 8) & 0xFF) - 1;
+    }
+
+    /**
+     * @return The day of the month starting at 1, like {@link Calendar#DAY_OF_MONTH}.
+     */
+    static int getDayOfMonth(double mjd) {
+        int epochDay = getEpochDay(mjd);
+        if (epochDay < GREGORIAN_EPOCH_DAY) {
+            return getCalendar(mjd).get(Calendar.DAY_OF_MONTH);
+        }
+        return (int) (civil(epochDay) & 0xFF);
+    }
+
+    /**
+     * @return The day of the year starting at 1, like {@link Calendar#DAY_OF_YEAR}.
+     */
+    static int getDayOfYear(double mjd) {
+        int epochDay = getEpochDay(mjd);
+        if (epochDay < GREGORIAN_EPOCH_DAY) {
+            return getCalendar(mjd).get(Calendar.DAY_OF_YEAR);
+        }
+        int year = (int) (civil(epochDay) >> 16);
+        return epochDay - daysFromCivil(year, 1, 1) + 1;
+    }
+
+    /**
+     * @return The start of the year, January 1st 00:00 UTC, as MJD2000.
+     */
+    static double getYearStart(int year) {
+        return daysFromCivil(year, 1, 1) - MJD2000_EPOCH_DAY;
+    }
+
+    /**
+     * @return The day in days since 1970-01-01.
+     */
+    static int getEpochDay(double mjd) {
+        double day = Math.floor(mjd);
+        double fraction = mjd - day;
+        if (fraction < MIDNIGHT_MARGIN || fraction > 1 - MIDNIGHT_MARGIN) {
+            return (int) Math.floorDiv(getCalendar(mjd).getTimeInMillis(), MILLIS_PER_DAY);
+        }
+        return (int) day + MJD2000_EPOCH_DAY;
+    }
+
+    private static Calendar getCalendar(double mjd) {
+        return new ProductData.UTC(mjd).getAsCalendar();
+    }
+
+    // H. Hinnant, "chrono-Compatible Low-Level Date Algorithms"; returns year << 16 | month << 8 | day
+    private static long civil(int epochDay) {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + (long) era * 400 + (month <= 2 ? 1 : 0);
+        return year << 16 | month << 8 | day;
+    }
+
+    private static int daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
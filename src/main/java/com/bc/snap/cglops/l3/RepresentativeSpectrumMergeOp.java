@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.snap.binning.AggregatorConfig;
+import org.esa.snap.binning.operator.AggregatorConfigDomConverter;
+import org.esa.snap.binning.support.VariableContextImpl;
+import org.esa.snap.binning.support.VectorImpl;
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.CrsGeoCoding;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.gpf.Operator;
+import org.esa.snap.core.gpf.OperatorException;
+import org.esa.snap.core.gpf.OperatorSpi;
+import org.esa.snap.core.gpf.Tile;
+import org.esa.snap.core.gpf.annotations.OperatorMetadata;
+import org.esa.snap.core.gpf.annotations.Parameter;
+import org.esa.snap.core.util.StringUtils;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes the representative spectra from the partial states written by the
+ * {@link AggregatorRepresentativeSpectrum}, without reading the L2 products again.
+ * The states of all files are merged bin by bin, so only one bin is held on the heap at a time.
+ * Optionally the merged (and windowed) state is written to a new partial state file.
+ */
+@OperatorMetadata(alias = "RepresentativeSpectrumMerge",
+        version = "1.0",
+        authors = "Brockmann Consult",
+        copyright = "(c) 2017 by Brockmann Consult GmbH",
+        description = "Merges partial states of the RepresentativeSpectrum aggregator " +
+                "and computes the representative spectra on a plate carree grid")
+public class RepresentativeSpectrumMergeOp extends Operator {
+
+    @Parameter(notNull = true, notEmpty = true,
+            description = "The partial state files written by the RepresentativeSpectrum aggregator ('partialStateFile').")
+    private String[] partialStates;
+
+    @Parameter(alias = "aggregator", domConverter = AggregatorConfigDomConverter.class, notNull = true,
+            description = "The configuration of the RepresentativeSpectrum aggregator, as used for the binning. " +
+                    "Its 'startDate' and 'windowDays' select the period of the result.")
+    private AggregatorConfig aggregatorConfig;
+
+    @Parameter(description = "Number of rows in the (global) planetary grid used for the binning.", defaultValue = "2160")
+    private int numRows;
+
+    @Parameter(description = "If given, the merged partial states are written to this file.")
+    private String outputStateFile;
+
+    private Map<Band, float[]> bandData;
+
+    @Override
+    public void initialize() throws OperatorException {
+        if (!(aggregatorConfig instanceof AggregatorRepresentativeSpectrum.Config)) {
+            throw new OperatorException("'aggregator' must be of type RepresentativeSpectrum.");
+        }
+        AggregatorRepresentativeSpectrum.Config config = (AggregatorRepresentativeSpectrum.Config) aggregatorConfig;
+        if (config.maxSpectra > 0) {
+            throw new OperatorException("'maxSpectra' can not be combined with partial states.");
+        }
+        if (numRows <= 0 || numRows % 2 != 0) {
+            throw new OperatorException("'numRows' must be positive and even.");
+        }
+        VariableContextImpl varCtx = new VariableContextImpl();
+        for (String varName : config.varNames) {
+            varCtx.defineVariable(varName);
+        }
+        AggregatorRepresentativeSpectrum aggregator = new AggregatorRepresentativeSpectrum(varCtx, config, null);
+        File[] files = new File[partialStates.length];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(partialStates[i]);
+        }
+        if (StringUtils.isNotNullAndNotEmpty(outputStateFile)) {
+            try {
+                SpectrumStoreFile.checkTargetNotSource(new File(outputStateFile), files);
+            } catch (IllegalArgumentException e) {
+                throw new OperatorException("'outputStateFile' must not be one of 'partialStates'.", e);
+            }
+        }
+        try (SpectrumStoreFile.Index index = aggregator.openPartialStates(files);
+             SpectrumStoreFile.Writer writer = StringUtils.isNotNullAndNotEmpty(outputStateFile) ?
+                     aggregator.createPartialStateWriter(new File(outputStateFile)) : null) {
+            setTargetProduct(createProduct(aggregator, index, writer));
+        } catch (IOException e) {
+            throw new OperatorException("Failed to merge partial states", e);
+        }
+    }
+
+    private Product createProduct(AggregatorRepresentativeSpectrum aggregator, SpectrumStoreFile.Index index,
+                                  SpectrumStoreFile.Writer writer) throws IOException {
+        long[] binIndices = index.getBinIndices();
+        int numCols = 2 * numRows;
+        int minRow = numRows;
+        int maxRow = -1;
+        int minCol = numCols;
+        int maxCol = -1;
+        for (long binIndex : binIndices) {
+            int row = (int) (binIndex / numCols);
+            int col = (int) (binIndex % numCols);
+            minRow = Math.min(minRow, row);
+            maxRow = Math.max(maxRow, row);
+            minCol = Math.min(minCol, col);
+            maxCol = Math.max(maxCol, col);
+        }
+        if (maxRow < 0) {
+            throw new OperatorException("The partial states contain no bins.");
+        }
+        int width = maxCol - minCol + 1;
+        int height = maxRow - minRow + 1;
+        double pixelSize = 180.0 / numRows;
+        Product product = new Product("RepresentativeSpectrum", "RepresentativeSpectrum", width, height);
+        try {
+            product.setSceneGeoCoding(new CrsGeoCoding(DefaultGeographicCRS.WGS84, width, height,
+                                                       -180.0 + minCol * pixelSize, 90.0 - minRow * pixelSize,
+                                                       pixelSize, pixelSize, 0.0, 0.0));
+        } catch (Exception e) {
+            throw new OperatorException("Failed to create the geo-coding", e);
+        }
+        String[] featureNames = aggregator.getTemporalFeatureNames();
+        Band[] bands = new Band[featureNames.length];
+        float[][] data = new float[featureNames.length][];
+        bandData = new HashMap<>();
+        for (int i = 0; i < featureNames.length; i++) {
+            bands[i] = product.addBand(featureNames[i], ProductData.TYPE_FLOAT32);
+            bands[i].setNoDataValue(Float.NaN);
+            bands[i].setNoDataValueUsed(true);
+            data[i] = new float[width * height];
+            Arrays.fill(data[i], Float.NaN);
+            bandData.put(bands[i], data[i]);
+        }
+
+        VectorImpl temporalVector = new VectorImpl(new float[featureNames.length]);
+        for (long binIndex : binIndices) {
+            SpectrumStore state = index.take(binIndex);
+            aggregator.completeState(state, temporalVector);
+            if (writer != null && state.size() > 0) {
+                writer.write(binIndex, state);
+            }
+            int pixelIndex = (int) (binIndex / numCols - minRow) * width + (int) (binIndex % numCols - minCol);
+            for (int i = 0; i < featureNames.length; i++) {
+                data[i][pixelIndex] = temporalVector.get(i);
+            }
+        }
+        return product;
+    }
+
+    @Override
+    public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
+        float[] data = bandData.get(targetBand);
+        int width = getTargetProduct().getSceneRasterWidth();
+        Rectangle rectangle = targetTile.getRectangle();
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                targetTile.setSample(x, y, data[y * width + x]);
+            }
+        }
+    }
+
+    public static class Spi extends OperatorSpi {
+        public Spi() {
+            super(RepresentativeSpectrumMergeOp.class);
+        }
+    }
+}
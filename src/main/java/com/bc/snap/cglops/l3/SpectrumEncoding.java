@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+/**
+ * The compact encoding of the spectra in a {@link SpectrumStore}:
+ * <p>
+ * Band values are stored as 16-bit integers {@code code = round((value - offset) / scale)},
+ * values outside of the representable range are clamped. The day offset, if any, is stored as an unsigned byte,
+ * so it must be within {@code [0, 255]}.
+ */
+final class SpectrumEncoding {
+
+    private static final short NAN_CODE = Short.MIN_VALUE;
+    static final int MAX_DAY = 255;
+
+    private final float[] scales;
+    private final float[] offsets;
+    private final boolean day;
+
+    /**
+     * @param scales  The scale per band, must be positive.
+     * @param offsets The offset per band.
+     * @param day     If the spectra have an additional day column.
+     */
+    SpectrumEncoding(float[] scales, float[] offsets, boolean day) {
+        if (scales.length != offsets.length) {
+            throw new IllegalArgumentException("Number of scales and offsets differ: " + scales.length + " != " + offsets.length);
+        }
+        for (int i = 0; i < scales.length; i++) {
+            if (!(scales[i] > 0) || Float.isInfinite(scales[i])) {
+                throw new IllegalArgumentException("scales[" + i + "] must be positive, but is " + scales[i]);
+            }
+            if (Float.isNaN(offsets[i]) || Float.isInfinite(offsets[i])) {
+                throw new IllegalArgumentException("offsets[" + i + "] must be finite, but is " + offsets[i]);
+            }
+        }
+        this.scales = scales.clone();
+        this.offsets = offsets.clone();
+        this.day = day;
+    }
+
+    int getNumBands() {
+        return scales.length;
+    }
+
+    /**
+     * @return {@code true}, if the last column of the spectra is the day offset.
+     */
+    boolean hasDay() {
+        return day;
+    }
+
+    short encode(int band, float value) {
+        if (Float.isNaN(value)) {
+            return NAN_CODE;
+        }
+        float code = Math.round((value - offsets[band]) / scales[band]);
+        return (short) Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, code));
+    }
+
+    float decode(int band, short code) {
+        return code == NAN_CODE ? Float.NaN : offsets[band] + scales[band] * code;
+    }
+
+    /**
+     * @return {@code true}, if the day offset is within {@code [0, 255]} and can be stored in a byte.
+     */
+    static boolean canEncodeDay(float day) {
+        return day >= 0 && day <= MAX_DAY;
+    }
+
+    byte encodeDay(float day) {
+        if (!canEncodeDay(day)) {
+            throw new IllegalArgumentException("Day offset " + day + " can not be stored in a byte");
+        }
+        return (byte) day;
+    }
+
+    float decodeDay(byte code) {
+        return code & 0xFF;
+    }
+}
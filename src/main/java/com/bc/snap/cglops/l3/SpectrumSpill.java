@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap storage for the spectra of {@link SpectrumStore}s.
+ * <p>
+ * Keeps track of the heap memory used by all stores of one aggregator and of the stores holding rows on the heap.
+ * When the memory exceeds the threshold, the rows of those stores are moved to a temporary file, the oldest stores
+ * first, until the memory is down to half the threshold. So the heap is bounded by the threshold, no matter how
+ * many bins are being aggregated, and many small bins are spilled in bulk rather than row by row.
+ * The file is shared by all bins and threads and only ever appended to. The rows are read back when the bin is completed.
+ * The file is deleted when the spill is {@link #close() closed}.
+ */
+final class SpectrumSpill {
+
+    private final long heapThreshold;
+    private final File directory;
+    private final AtomicLong heapBytes;
+    private final AtomicLong fileLength;
+    // the stores holding rows on the heap, in the order they got them
+    private final Set<SpectrumStore> heapStores;
+    private volatile FileChannel channel;
+    private File file;
+    private boolean closed;
+
+    /**
+     * @param heapThreshold The number of bytes the stores may keep on the heap before spilling.
+     * @param directory     The directory for the temporary file, if {@code null} the default temporary directory is used.
+     */
+    SpectrumSpill(long heapThreshold, File directory) {
+        this.heapThreshold = heapThreshold;
+        this.directory = directory;
+        this.heapBytes = new AtomicLong();
+        this.fileLength = new AtomicLong();
+        this.heapStores = new LinkedHashSet<>();
+    }
+
+    boolean isThresholdExceeded() {
+        return heapBytes.get() > heapThreshold;
+    }
+
+    void allocated(long numBytes) {
+        heapBytes.addAndGet(numBytes);
+    }
+
+    long getHeapBytes() {
+        return heapBytes.get();
+    }
+
+    synchronized void register(SpectrumStore store) {
+        heapStores.add(store);
+    }
+
+    synchronized void unregister(SpectrumStore store) {
+        heapStores.remove(store);
+    }
+
+    /**
+     * Spills the rows of the registered stores, the oldest first, until the heap memory is down to half the threshold.
+     */
+    void spillStores() {
+        while (heapBytes.get() > heapThreshold / 2) {
+            SpectrumStore store;
+            synchronized (this) {
+                Iterator<SpectrumStore> iterator = heapStores.iterator();
+                if (!iterator.hasNext()) {
+                    return;
+                }
+                store = iterator.next();
+                iterator.remove();
+            }
+            // not holding the lock, a store registers while holding its own lock
+            store.spillRows();
+        }
+    }
+
+    /**
+     * Appends {@code length} values of {@code data} starting at {@code offset} to the file.
+     *
+     * @return The position of the values in the file.
+     */
+    long write(float[] data, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length * 4).order(ByteOrder.nativeOrder());
+        buffer.asFloatBuffer().put(data, offset, length);
+        long position = fileLength.getAndAdd(buffer.capacity());
+        try {
+            FileChannel channel = getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to spill spectra", e);
+        }
+        return position;
+    }
+
+    /**
+     * Reads {@code length} values from the given file position into {@code data}, starting at {@code offset}.
+     */
+    void read(long position, float[] data, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length * 4).order(ByteOrder.nativeOrder());
+        try {
+            FileChannel channel = getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read spilled spectra", e);
+        }
+        buffer.flip();
+        buffer.asFloatBuffer().get(data, offset, length);
+    }
+
+    /**
+     * Closes and deletes the temporary file. Spilled rows can not be read anymore.
+     */
+    synchronized void close() {
+        closed = true;
+        heapStores.clear();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to close spilled spectra", e);
+            } finally {
+                channel = null;
+                file.delete();
+            }
+        }
+    }
+
+    private FileChannel getChannel() throws IOException {
+        FileChannel channel = this.channel;
+        if (channel == null) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("The spill is closed");
+                }
+                channel = this.channel;
+                if (channel == null) {
+                    file = File.createTempFile("representative-spectra-", ".bin", directory);
+                    file.deleteOnExit();
+                    channel = new RandomAccessFile(file, "rw").getChannel();
+                    this.channel = channel;
+                }
+            }
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import org.esa.snap.binning.Vector;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The per-bin state of the {@link AggregatorRepresentativeSpectrum}:
+ * <p>
+ * All collected spectra are kept in a single growable float buffer in row-major order,
+ * one row per spectrum and one column per feature of the spatial vector.
+ * <p>
+ * If a {@link SpectrumSpill} is given, the store registers with it while it holds rows on the heap.
+ * Whenever the threshold of the spill is exceeded, it moves the rows of the registered stores off the heap,
+ * possibly from another thread, and the buffers are freed then. Spilled rows must be {@link #load() loaded}
+ * again before they can be accessed, loading unregisters the store.
+ * <p>
+ * If a {@link SpectrumEncoding} is given, the bands are kept as 16-bit codes and the day as a byte instead,
+ * values are decoded when accessed.
+ */
+final class SpectrumStore {
+
+    private final int numColumns;
+    private final int initialCapacity;
+    private final SpectrumSpill spill;
+    private final SpectrumEncoding encoding;
+    private final int numBands;
+    private float[] data;
+    private short[] codes;
+    private byte[] days;
+    private int size;
+    private int numObserved;
+
+    private int numSpilled;
+    private int numSegments;
+    private long[] segmentPositions;
+    private int[] segmentSizes;
+    // guarded by this, true while the store is registered with the spill
+    private boolean spillable;
+
+    SpectrumStore(int numColumns, int initialCapacity) {
+        this(numColumns, initialCapacity, null, null);
+    }
+
+    SpectrumStore(int numColumns, int initialCapacity, SpectrumSpill spill, SpectrumEncoding encoding) {
+        if (encoding != null) {
+            if (spill != null) {
+                throw new IllegalArgumentException("Encoded spectra can not be spilled");
+            }
+            if (encoding.getNumBands() + (encoding.hasDay() ? 1 : 0) != numColumns) {
+                throw new IllegalArgumentException("Encoding does not match the number of columns: " + numColumns);
+            }
+        }
+        this.numColumns = numColumns;
+        this.initialCapacity = initialCapacity;
+        this.spill = spill;
+        this.encoding = encoding;
+        if (encoding != null) {
+            this.numBands = encoding.getNumBands();
+            this.data = new float[0];
+            this.codes = new short[numBands * initialCapacity];
+            this.days = new byte[encoding.hasDay() ? initialCapacity : 0];
+        } else {
+            this.numBands = numColumns;
+            // with a spill, the buffer is allocated by the first row, so that empty stores do not count
+            this.data = new float[spill != null ? 0 : numColumns * initialCapacity];
+        }
+        this.size = 0;
+        this.numObserved = 0;
+    }
+
+    int getNumColumns() {
+        return numColumns;
+    }
+
+    /**
+     * @return The encoding of the spectra or {@code null}, if they are stored as floats.
+     */
+    SpectrumEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return The number of spectra (rows) in this store, including spilled ones.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of spectra offered to this store, including those not kept by {@link #addSample}.
+     */
+    int getNumObserved() {
+        return numObserved;
+    }
+
+    /**
+     * Appends the first {@link #getNumColumns()} values of the given vector as a new row.
+     */
+    void add(Vector vector) {
+        if (spill == null) {
+            appendRow(vector);
+            return;
+        }
+        synchronized (this) {
+            appendRow(vector);
+            registerWithSpill();
+        }
+        // outside of the lock, the spill may lock other stores
+        if (spill.isThresholdExceeded()) {
+            spill.spillStores();
+        }
+    }
+
+    private void appendRow(Vector vector) {
+        ensureCapacity(size - numSpilled + 1);
+        setRow(size - numSpilled, vector);
+        size++;
+        numObserved++;
+    }
+
+    /**
+     * Adds the given vector to a uniform reservoir sample (algorithm R) of at most {@code maxSize} rows.
+     * The random choices are derived from {@code seed} and the number of observed spectra,
+     * so the same sequence of spectra always results in the same sample.
+     * Must not be used together with spilling.
+     */
+    void addSample(Vector vector, int maxSize, long seed) {
+        if (size < maxSize) {
+            add(vector);
+            return;
+        }
+        long hash = mix(seed * 0x9E3779B97F4A7C15L + numObserved);
+        int row = (int) ((hash >>> 1) % (numObserved + 1L));
+        if (row < maxSize) {
+            setRow(row, vector);
+        }
+        numObserved++;
+    }
+
+    float get(int row, int column) {
+        if (encoding == null) {
+            return data[row * numColumns + column];
+        } else if (column < numBands) {
+            return encoding.decode(column, codes[row * numBands + column]);
+        } else {
+            return encoding.decodeDay(days[row]);
+        }
+    }
+
+    /**
+     * Copies the values of the given column into {@code column}, which must have at least {@link #size()} elements.
+     */
+    void getColumn(int columnIndex, float[] column) {
+        if (encoding != null) {
+            for (int row = 0; row < size; row++) {
+                column[row] = get(row, columnIndex);
+            }
+            return;
+        }
+        for (int row = 0, offset = columnIndex; row < size; row++, offset += numColumns) {
+            column[row] = data[offset];
+        }
+    }
+
+    /**
+     * Copies the codes of the given band into {@code column}, which must have at least {@link #size()} elements.
+     * Only for encoded stores.
+     */
+    void getCodes(int band, short[] column) {
+        for (int row = 0, offset = band; row < size; row++, offset += numBands) {
+            column[row] = codes[offset];
+        }
+    }
+
+    /**
+     * Copies the values of the given columns of all rows into {@code block}, row-major.
+     * The block must have at least {@code size() * columnIndices.length} elements.
+     */
+    void getColumns(int[] columnIndices, float[] block) {
+        int blockOffset = 0;
+        if (encoding != null) {
+            for (int row = 0; row < size; row++) {
+                for (int columnIndex : columnIndices) {
+                    block[blockOffset++] = get(row, columnIndex);
+                }
+            }
+            return;
+        }
+        for (int row = 0, offset = 0; row < size; row++, offset += numColumns) {
+            for (int columnIndex : columnIndices) {
+                block[blockOffset++] = data[offset + columnIndex];
+            }
+        }
+    }
+
+    /**
+     * Appends all rows of {@code other}, which must have the same number of columns and must be loaded.
+     * If {@code dayColumn} is not negative, {@code dayOffset} is added to the values of that column.
+     */
+    void addAll(SpectrumStore other, int dayColumn, float dayOffset) {
+        if (other.numColumns != numColumns) {
+            throw new IllegalArgumentException("Number of columns differ: " + other.numColumns + " != " + numColumns);
+        }
+        if (spill == null) {
+            appendAll(other, dayColumn, dayOffset);
+            return;
+        }
+        synchronized (this) {
+            appendAll(other, dayColumn, dayOffset);
+            registerWithSpill();
+        }
+        if (spill.isThresholdExceeded()) {
+            spill.spillStores();
+        }
+    }
+
+    private void appendAll(SpectrumStore other, int dayColumn, float dayOffset) {
+        ensureCapacity(size - numSpilled + other.size);
+        if (encoding == null && other.encoding == null) {
+            int offset = (size - numSpilled) * numColumns;
+            System.arraycopy(other.data, 0, data, offset, other.size * numColumns);
+            if (dayColumn >= 0) {
+                for (int i = offset + dayColumn; i < offset + other.size * numColumns; i += numColumns) {
+                    data[i] += dayOffset;
+                }
+            }
+        } else {
+            for (int otherRow = 0, row = size - numSpilled; otherRow < other.size; otherRow++, row++) {
+                for (int column = 0; column < numColumns; column++) {
+                    float value = other.get(otherRow, column);
+                    setValue(row, column, column == dayColumn ? value + dayOffset : value);
+                }
+            }
+        }
+        size += other.size;
+        numObserved += other.numObserved;
+    }
+
+    /**
+     * Removes all rows whose value in {@code dayColumn} is not within {@code [minDay, maxDay)}.
+     * The rows must be loaded. The removed rows are not counted as observed anymore.
+     *
+     * @return The number of removed rows.
+     */
+    int retainDays(int dayColumn, float minDay, float maxDay) {
+        if (numSpilled > 0) {
+            throw new IllegalStateException("Spilled rows must be loaded first");
+        }
+        int numRetained = 0;
+        for (int row = 0; row < size; row++) {
+            float day = get(row, dayColumn);
+            if (day >= minDay && day < maxDay) {
+                if (row != numRetained) {
+                    copyRow(row, numRetained);
+                }
+                numRetained++;
+            }
+        }
+        int numRemoved = size - numRetained;
+        size = numRetained;
+        numObserved -= numRemoved;
+        return numRemoved;
+    }
+
+    /**
+     * Writes the number of observed spectra and all rows, which must be loaded.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(numObserved);
+        out.writeInt(size);
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < numColumns; column++) {
+                out.writeFloat(get(row, column));
+            }
+        }
+    }
+
+    /**
+     * Reads a store written by {@link #writeTo(DataOutput)}.
+     */
+    static SpectrumStore readFrom(DataInput in, int numColumns) throws IOException {
+        int numObserved = in.readInt();
+        int size = in.readInt();
+        SpectrumStore store = new SpectrumStore(numColumns, size);
+        for (int i = 0; i < size * numColumns; i++) {
+            store.data[i] = in.readFloat();
+        }
+        store.size = size;
+        store.numObserved = numObserved;
+        return store;
+    }
+
+    /**
+     * @return The number of spectra (rows) currently not on the heap.
+     */
+    synchronized int getNumSpilled() {
+        return numSpilled;
+    }
+
+    /**
+     * @return The number of times rows have been spilled since the store was last loaded.
+     */
+    synchronized int getNumSegments() {
+        return numSegments;
+    }
+
+    /**
+     * Reads all spilled rows back into the heap. The rows are not spilled anymore afterwards.
+     */
+    synchronized void load() {
+        unregisterFromSpill();
+        if (numSpilled == 0) {
+            return;
+        }
+        int numHeapRows = size - numSpilled;
+        float[] loadedData = new float[size * numColumns];
+        int offset = 0;
+        for (int i = 0; i < numSegments; i++) {
+            int length = segmentSizes[i] * numColumns;
+            spill.read(segmentPositions[i], loadedData, offset, length);
+            offset += length;
+        }
+        System.arraycopy(data, 0, loadedData, offset, numHeapRows * numColumns);
+        replaceData(loadedData);
+        numSpilled = 0;
+        numSegments = 0;
+        segmentPositions = null;
+        segmentSizes = null;
+    }
+
+    /**
+     * Removes all rows and releases the heap memory.
+     */
+    synchronized void release() {
+        unregisterFromSpill();
+        replaceData(new float[0]);
+        if (encoding != null) {
+            codes = new short[0];
+            days = new byte[0];
+        }
+        size = 0;
+        numSpilled = 0;
+        numSegments = 0;
+        segmentPositions = null;
+        segmentSizes = null;
+    }
+
+    /**
+     * Moves the rows on the heap to the spill, called by the spill for registered stores.
+     */
+    synchronized void spillRows() {
+        if (!spillable) {
+            // loaded or released since the spill has chosen it
+            return;
+        }
+        spillable = false;
+        int numHeapRows = size - numSpilled;
+        if (numHeapRows == 0) {
+            return;
+        }
+        long position = spill.write(data, 0, numHeapRows * numColumns);
+        if (segmentPositions == null) {
+            segmentPositions = new long[4];
+            segmentSizes = new int[4];
+        } else if (numSegments == segmentPositions.length) {
+            segmentPositions = Arrays.copyOf(segmentPositions, 2 * numSegments);
+            segmentSizes = Arrays.copyOf(segmentSizes, 2 * numSegments);
+        }
+        segmentPositions[numSegments] = position;
+        segmentSizes[numSegments] = numHeapRows;
+        numSegments++;
+        numSpilled = size;
+        // free the whole buffer, it is allocated again by the next row added
+        replaceData(new float[0]);
+    }
+
+    private void registerWithSpill() {
+        if (!spillable) {
+            spillable = true;
+            spill.register(this);
+        }
+    }
+
+    private void unregisterFromSpill() {
+        if (spillable) {
+            spillable = false;
+            spill.unregister(this);
+        }
+    }
+
+    private void replaceData(float[] newData) {
+        if (spill != null) {
+            spill.allocated(4L * (newData.length - data.length));
+        }
+        data = newData;
+    }
+
+    private void setRow(int row, Vector vector) {
+        if (encoding != null) {
+            for (int i = 0; i < numColumns; i++) {
+                setValue(row, i, vector.get(i));
+            }
+            return;
+        }
+        int offset = row * numColumns;
+        for (int i = 0; i < numColumns; i++) {
+            data[offset + i] = vector.get(i);
+        }
+    }
+
+    private void copyRow(int fromRow, int toRow) {
+        if (encoding == null) {
+            System.arraycopy(data, fromRow * numColumns, data, toRow * numColumns, numColumns);
+        } else {
+            System.arraycopy(codes, fromRow * numBands, codes, toRow * numBands, numBands);
+            if (encoding.hasDay()) {
+                days[toRow] = days[fromRow];
+            }
+        }
+    }
+
+    private void setValue(int row, int column, float value) {
+        if (encoding == null) {
+            data[row * numColumns + column] = value;
+        } else if (column < numBands) {
+            codes[row * numBands + column] = encoding.encode(column, value);
+        } else {
+            days[row] = encoding.encodeDay(value);
+        }
+    }
+
+    // the SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private void ensureCapacity(int numRows) {
+        int capacity = encoding != null ? codes.length / numBands : data.length / numColumns;
+        if (numRows > capacity) {
+            int newCapacity = Math.max(numRows, capacity > 0 ? capacity + (capacity >> 1) + 1 : initialCapacity);
+            if (encoding != null) {
+                codes = Arrays.copyOf(codes, newCapacity * numBands);
+                if (encoding.hasDay()) {
+                    days = Arrays.copyOf(days, newCapacity);
+                }
+            } else {
+                replaceData(Arrays.copyOf(data, newCapacity * numColumns));
+            }
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import org.esa.snap.core.datamodel.ProductData;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The file format for partial states of the {@link AggregatorRepresentativeSpectrum}:
+ * <p>
+ * The spectra collected per bin during a sub-period (e.g. a day) are written to a file,
+ * files of several sub-periods can be merged and used to seed the bins of the whole period (e.g. a dekad).
+ * <p>
+ * The file starts with a header (magic, version, number of columns, index of the day column or -1,
+ * start day as MJD2000) followed by one record per bin (bin index, number of observed spectra,
+ * number of rows, rows). Day values are relative to the start day of the file and get rebased when read.
+ */
+public final class SpectrumStoreFile {
+
+    private static final int MAGIC = 0x52535346;
+    private static final int VERSION = 1;
+
+    private SpectrumStoreFile() {
+    }
+
+    /**
+     * Merges the partial states of the given source files into the target file.
+     * The day values are rebased to the earliest start day of the sources.
+     */
+    public static void merge(File target, File... sources) throws IOException {
+        if (sources.length == 0) {
+            throw new IllegalArgumentException("No source files given");
+        }
+        checkTargetNotSource(target, sources);
+        Header header = null;
+        for (File source : sources) {
+            Header sourceHeader = readHeader(source);
+            if (header == null) {
+                header = sourceHeader;
+            } else {
+                header.checkCompatible(sourceHeader, source);
+                header = new Header(header.numColumns, header.dayColumn, Math.min(header.startDay, sourceHeader.startDay));
+            }
+        }
+        try (Index index = new Index(header.numColumns, header.dayColumn, header.startDay, sources);
+             Writer writer = new Writer(target, header.numColumns, header.dayColumn, header.startDay)) {
+            for (long binIndex : index.getBinIndices()) {
+                writer.write(binIndex, index.take(binIndex));
+            }
+        }
+    }
+
+    /**
+     * Merges the partial states of the given source files into the target file, keeping only the spectra
+     * of the window of {@code windowDays} days starting at {@code startDate}.
+     * This carries the state of a sliding window forward, including the bins not observed on the latest day.
+     *
+     * @param startDate The first day of the window in format 'YYYY-MM-DD'.
+     */
+    public static void merge(File target, String startDate, int windowDays, File... sources) throws IOException {
+        if (sources.length == 0) {
+            throw new IllegalArgumentException("No source files given");
+        }
+        if (windowDays <= 0) {
+            throw new IllegalArgumentException("windowDays must be positive");
+        }
+        checkTargetNotSource(target, sources);
+        int startDay;
+        try {
+            startDay = ProductData.UTC.parse(startDate, "yyyy-MM-dd").getDaysFraction();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(e);
+        }
+        Header header = readHeader(sources[0]);
+        if (header.dayColumn < 0) {
+            throw new IllegalArgumentException("Partial states without days can not be windowed: " + sources[0]);
+        }
+        try (Index index = new Index(header.numColumns, header.dayColumn, startDay, sources);
+             Writer writer = new Writer(target, header.numColumns, header.dayColumn, startDay)) {
+            for (long binIndex : index.getBinIndices()) {
+                SpectrumStore store = index.take(binIndex);
+                store.retainDays(header.dayColumn, 0, windowDays);
+                if (store.size() > 0) {
+                    writer.write(binIndex, store);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the partial states of the given files, merging the states of the same bin.
+     * The day values are rebased to {@code startDay}. All states are held on the heap,
+     * use an {@link Index} to read them bin by bin.
+     *
+     * @return The merged states by bin index.
+     */
+    static Map<Long, SpectrumStore> read(int numColumns, int dayColumn, int startDay, File... files) throws IOException {
+        TreeMap<Long, SpectrumStore> stores = new TreeMap<>();
+        try (Index index = new Index(numColumns, dayColumn, startDay, files)) {
+            for (long binIndex : index.getBinIndices()) {
+                stores.put(binIndex, index.take(binIndex));
+            }
+        }
+        return stores;
+    }
+
+    /**
+     * Rejects a target file which is also one of the source files, it would be truncated before the sources are read.
+     */
+    static void checkTargetNotSource(File target, File... sources) {
+        for (File source : sources) {
+            if (isSameFile(target, source)) {
+                throw new IllegalArgumentException("The target file is one of the source files: " + target);
+            }
+        }
+    }
+
+    private static boolean isSameFile(File file1, File file2) {
+        try {
+            return file1.getCanonicalFile().equals(file2.getCanonicalFile());
+        } catch (IOException e) {
+            return file1.getAbsoluteFile().toPath().normalize().equals(file2.getAbsoluteFile().toPath().normalize());
+        }
+    }
+
+    private static Header readHeader(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return Header.read(in, file);
+        }
+    }
+
+    /**
+     * The partial states of several files, indexed by bin index without reading the spectra.
+     * The states of a bin are read when they are {@link #take(long) taken}, so only the bins being aggregated
+     * are held on the heap. Can be shared by several threads.
+     */
+    static final class Index implements Closeable {
+
+        private final int numColumns;
+        private final int dayColumn;
+        private final FileChannel[] channels;
+        private final float[] dayOffsets;
+        // the records of all files, sorted by bin index
+        private final long[] binIndices;
+        private final int[] fileIndices;
+        private final long[] positions;
+        private final int[] lengths;
+        private final BitSet taken;
+
+        /**
+         * @param startDay The day the day values are rebased to.
+         */
+        Index(int numColumns, int dayColumn, int startDay, File... files) throws IOException {
+            this.numColumns = numColumns;
+            this.dayColumn = dayColumn;
+            channels = new FileChannel[files.length];
+            dayOffsets = new float[files.length];
+            Header expected = new Header(numColumns, dayColumn, startDay);
+            RecordList records = new RecordList();
+            try {
+                for (int i = 0; i < files.length; i++) {
+                    channels[i] = new RandomAccessFile(files[i], "r").getChannel();
+                    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(files[i])))) {
+                        Header header = Header.read(in, files[i]);
+                        expected.checkCompatible(header, files[i]);
+                        dayOffsets[i] = header.startDay - startDay;
+                        long position = Header.SIZE;
+                        while (true) {
+                            long binIndex;
+                            try {
+                                binIndex = in.readLong();
+                            } catch (EOFException e) {
+                                break;
+                            }
+                            in.readInt();
+                            int size = in.readInt();
+                            int dataLength = 4 * size * numColumns;
+                            skipFully(in, dataLength, files[i]);
+                            int length = 16 + dataLength;
+                            records.add(binIndex, i, position, length);
+                            position += length;
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+            Integer[] order = records.sortedOrder();
+            binIndices = new long[order.length];
+            fileIndices = new int[order.length];
+            positions = new long[order.length];
+            lengths = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                int record = order[i];
+                binIndices[i] = records.binIndices[record];
+                fileIndices[i] = records.fileIndices[record];
+                positions[i] = records.positions[record];
+                lengths[i] = records.lengths[record];
+            }
+            taken = new BitSet(order.length);
+        }
+
+        /**
+         * @return The distinct bin indices of all records, ascending.
+         */
+        long[] getBinIndices() {
+            return distinct(binIndices, null);
+        }
+
+        /**
+         * @return The distinct bin indices of the records not taken yet, ascending.
+         */
+        long[] getRemainingBinIndices() {
+            synchronized (taken) {
+                return distinct(binIndices, taken);
+            }
+        }
+
+        /**
+         * Reads and merges the states of the given bin from all files. The states of a bin can only be taken once.
+         *
+         * @return The merged state or {@code null}, if there is none or it has been taken already.
+         */
+        SpectrumStore take(long binIndex) throws IOException {
+            int first = Arrays.binarySearch(binIndices, binIndex);
+            if (first < 0) {
+                return null;
+            }
+            while (first > 0 && binIndices[first - 1] == binIndex) {
+                first--;
+            }
+            int end = first + 1;
+            while (end < binIndices.length && binIndices[end] == binIndex) {
+                end++;
+            }
+            synchronized (taken) {
+                if (taken.get(first)) {
+                    return null;
+                }
+                taken.set(first, end);
+            }
+            SpectrumStore merged = null;
+            for (int i = first; i < end; i++) {
+                SpectrumStore store = readRecord(i);
+                if (merged == null) {
+                    merged = new SpectrumStore(numColumns, store.size());
+                }
+                merged.addAll(store, dayColumn, dayOffsets[fileIndices[i]]);
+            }
+            return merged;
+        }
+
+        private SpectrumStore readRecord(int i) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(lengths[i]);
+            FileChannel channel = channels[fileIndices[i]];
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, positions[i] + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of partial state file");
+                }
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+            in.readLong();
+            return SpectrumStore.readFrom(in, numColumns);
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException exception = null;
+            for (FileChannel channel : channels) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        exception = e;
+                    }
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+
+        private static long[] distinct(long[] sorted, BitSet excluded) {
+            long[] result = new long[sorted.length];
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if ((excluded == null || !excluded.get(i)) && (n == 0 || result[n - 1] != sorted[i])) {
+                    result[n++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(result, n);
+        }
+
+        private static void skipFully(DataInputStream in, int numBytes, File file) throws IOException {
+            while (numBytes > 0) {
+                int skipped = in.skipBytes(numBytes);
+                if (skipped <= 0) {
+                    throw new EOFException("Truncated partial state file: " + file);
+                }
+                numBytes -= skipped;
+            }
+        }
+    }
+
+    /**
+     * The records found while indexing, in file order.
+     */
+    private static final class RecordList {
+
+        long[] binIndices = new long[64];
+        int[] fileIndices = new int[64];
+        long[] positions = new long[64];
+        int[] lengths = new int[64];
+        int size;
+
+        void add(long binIndex, int fileIndex, long position, int length) {
+            if (size == binIndices.length) {
+                int capacity = 2 * size;
+                binIndices = Arrays.copyOf(binIndices, capacity);
+                fileIndices = Arrays.copyOf(fileIndices, capacity);
+                positions = Arrays.copyOf(positions, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            binIndices[size] = binIndex;
+            fileIndices[size] = fileIndex;
+            positions[size] = position;
+            lengths[size] = length;
+            size++;
+        }
+
+        /**
+         * @return The record numbers ordered by bin index, records of the same bin stay in file order.
+         */
+        Integer[] sortedOrder() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            // a stable sort
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer r1, Integer r2) {
+                    return Long.compare(binIndices[r1], binIndices[r2]);
+                }
+            });
+            return order;
+        }
+    }
+
+    /**
+     * Writes partial states, can be shared by several threads.
+     * Every record is written through to the file, the writer must be closed to release the file.
+     */
+    static final class Writer implements Closeable {
+
+        private final RandomAccessFile file;
+
+        Writer(File file, int numColumns, int dayColumn, int startDay) throws IOException {
+            this.file = new RandomAccessFile(file, "rw");
+            this.file.setLength(0);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new Header(numColumns, dayColumn, startDay).write(new DataOutputStream(bytes));
+            this.file.write(bytes.toByteArray());
+        }
+
+        void write(long binIndex, SpectrumStore store) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 4 * store.size() * store.getNumColumns());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(binIndex);
+            store.writeTo(out);
+            synchronized (this) {
+                file.write(bytes.toByteArray());
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            file.close();
+        }
+    }
+
+    private static final class Header {
+
+        static final int SIZE = 20;
+
+        final int numColumns;
+        final int dayColumn;
+        final int startDay;
+
+        Header(int numColumns, int dayColumn, int startDay) {
+            this.numColumns = numColumns;
+            this.dayColumn = dayColumn;
+            this.startDay = startDay;
+        }
+
+        static Header read(DataInputStream in, File file) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a representative spectrum partial state file: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of partial state file: " + file);
+            }
+            return new Header(in.readInt(), in.readInt(), in.readInt());
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numColumns);
+            out.writeInt(dayColumn);
+            out.writeInt(startDay);
+        }
+
+        void checkCompatible(Header other, File file) {
+            if (other.numColumns != numColumns || other.dayColumn != dayColumn) {
+                throw new IllegalArgumentException("Partial state file has a different layout: " + file);
+            }
+        }
+    }
+}
@@ -25,32 +25,36 @@ import org.esa.snap.core.jexp.Symbol;
 import org.esa.snap.core.jexp.Term;
 import org.esa.snap.core.jexp.impl.DefaultNamespace;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * A namespace that is constructed from the variable context
+ * A namespace that is constructed from the variable context.
+ * Registered outputs can be referenced as well, input variables take precedence over outputs of the same name.
  */
 class VariableContextNamespace implements Namespace {
 
     private final DefaultNamespace defaultNamespace;
-    private final Set<String> variableNameSet;
-    private final String[] variableNames;
+    private final Map<String, Integer> variableIndexes;
+    private final Map<String, Symbol> outputSymbols;
 
     public VariableContextNamespace(VariableContext varCtx) {
         final int variableCount = varCtx.getVariableCount();
-        this.variableNameSet = new HashSet<>(variableCount);
-        this.variableNames = new String[variableCount];
+        this.variableIndexes = new HashMap<>(variableCount);
         for (int i = 0; i < variableCount; i++) {
             String name = varCtx.getVariableName(i);
-            variableNames[i] = name;
-            variableNameSet.add(name);
+            variableIndexes.put(name, i);
         }
+        this.outputSymbols = new HashMap<>();
         this.defaultNamespace = new DefaultNamespace();
     }
 
-    public String[] getVariableNames() {
-        return variableNames;
+    /**
+     * Makes an output referenceable by the expressions parsed afterwards. A later output of the same name
+     * replaces the earlier one.
+     */
+    public void registerOutput(String name, int index) {
+        outputSymbols.put(name, new OutputSymbol(name, index));
     }
 
     @Override
@@ -64,12 +68,13 @@ class VariableContextNamespace implements Namespace {
         if (symbol != null) {
             return symbol;
         }
-        if (variableNameSet.contains(name)) {
-            symbol = new FeatureSymbol(name);
+        Integer index = variableIndexes.get(name);
+        if (index != null) {
+            symbol = new FeatureSymbol(name, index);
             defaultNamespace.registerSymbol(symbol);
             return symbol;
         }
-        return null;
+        return outputSymbols.get(name);
     }
 
 }
@@ -18,14 +18,21 @@ package com.bc.snap.cglops.l3;
 
 import org.esa.snap.binning.Aggregator;
 import org.esa.snap.binning.BinContext;
+import org.esa.snap.binning.Observation;
 import org.esa.snap.binning.support.VectorImpl;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.bc.snap.cglops.l3.AggregatorTestUtils.assertVectorEquals;
 import static com.bc.snap.cglops.l3.AggregatorTestUtils.obsNT;
 import static com.bc.snap.cglops.l3.AggregatorTestUtils.vec;
 import static java.lang.Float.NaN;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class AggregatorMajorityClassTest {
     BinContext ctx;
@@ -124,4 +131,221 @@ public class AggregatorMajorityClassTest {
         assertEquals(14f, out.get(3), 1e-5f);
         assertEquals(3f, out.get(4), 1e-5f);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testTieBreak() {
+        MyVariableContext varCtx = new MyVariableContext("owt");
+        int[] classes = {5, 2, 9, 7};
+
+        assertEquals(2f, computeMajorityClass(new AggregatorMajorityClass(varCtx, "owt", classes), ctx, 3f, 3f, 1f, 3f), 0f);
+        assertEquals(2f, computeMajorityClass(new AggregatorMajorityClass(varCtx, "owt", classes, AggregatorMajorityClass.TieBreak.LOWEST_CLASS, null, 0), ctx, 3f, 3f, 1f, 3f), 0f);
+        assertEquals(7f, computeMajorityClass(new AggregatorMajorityClass(varCtx, "owt", classes, AggregatorMajorityClass.TieBreak.HIGHEST_CLASS, null, 0), ctx, 3f, 3f, 1f, 3f), 0f);
+        // no tie
+        assertEquals(9f, computeMajorityClass(new AggregatorMajorityClass(varCtx, "owt", classes, AggregatorMajorityClass.TieBreak.HIGHEST_CLASS, null, 0), ctx, 3f, 3f, 4f, 3f), 0f);
+    }
+
+    @Test
+    public void testTieBreakHashed() {
+        MyVariableContext varCtx = new MyVariableContext("owt");
+        int[] classes = {5, 2, 9, 7};
+        AggregatorMajorityClass agg = new AggregatorMajorityClass(varCtx, "owt", classes, AggregatorMajorityClass.TieBreak.HASHED, "2017-06-01", 0);
+
+        assertEquals(6, agg.getTemporalFeatureNames().length);
+        assertEquals("owt_tie_break_hash", agg.getTemporalFeatureNames()[5]);
+        assertEquals(7, agg.getOutputFeatureNames().length);
+
+        int[] numChosen = new int[10];
+        for (long binIndex = 0; binIndex < 300; binIndex++) {
+            float majorityClass = computeMajorityClass(agg, AggregatorTestUtils.createCtx(binIndex), 3f, 3f, 1f, 3f);
+            // same bin, same result
+            assertEquals(majorityClass, computeMajorityClass(agg, AggregatorTestUtils.createCtx(binIndex), 3f, 3f, 1f, 3f), 0f);
+            numChosen[(int) majorityClass]++;
+        }
+        assertEquals(0, numChosen[9]);
+        assertTrue(numChosen[5] > 50);
+        assertTrue(numChosen[2] > 50);
+        assertTrue(numChosen[7] > 50);
+        assertEquals(300, numChosen[5] + numChosen[2] + numChosen[7]);
+    }
+
+    @Test
+    public void testTieBreakHash() {
+        for (long binIndex = 0; binIndex < 1000; binIndex++) {
+            int hash = AggregatorMajorityClass.tieBreakHash(binIndex, 6726);
+            assertTrue(hash >= 0 && hash < (1 << 23));
+            assertEquals(hash, (int) (float) hash);
+        }
+        assertTrue(AggregatorMajorityClass.tieBreakHash(17, 6726) != AggregatorMajorityClass.tieBreakHash(17, 6736));
+    }
+
+    private static float computeMajorityClass(Aggregator agg, BinContext ctx, float... counts) {
+        float[] spatialCounts = new float[counts.length + 1];
+        System.arraycopy(counts, 0, spatialCounts, 0, counts.length);
+        VectorImpl tvec = new VectorImpl(new float[agg.getTemporalFeatureNames().length]);
+        VectorImpl out = new VectorImpl(new float[agg.getOutputFeatureNames().length]);
+        agg.initTemporal(ctx, tvec);
+        agg.aggregateTemporal(ctx, vec(spatialCounts), 1, tvec);
+        agg.completeTemporal(ctx, 1, tvec);
+        agg.computeOutput(tvec, out);
+        return out.get(counts.length + 2);
+    }
+
+    @Test
+    public void testTopNMetadata() {
+        MyVariableContext varCtx = new MyVariableContext("owt");
+        Aggregator agg = new AggregatorMajorityClass(varCtx, "owt", new int[]{1, 3, 5, 7, 9}, AggregatorMajorityClass.TieBreak.LOWEST_CLASS, null, 2);
+
+        assertArrayEquals(new String[]{"owt_top_1_class", "owt_top_1_counts", "owt_top_2_class", "owt_top_2_counts",
+                "owt_class_other_counts", "owt_class_error_counts"}, agg.getSpatialFeatureNames());
+        assertArrayEquals(agg.getSpatialFeatureNames(), agg.getTemporalFeatureNames());
+        assertArrayEquals(new String[]{"owt_top_1_class", "owt_top_1_counts", "owt_top_2_class", "owt_top_2_counts",
+                "owt_sum_all", "owt_sum_analyzed", "owt_majority_class", "owt_class_error_counts"}, agg.getOutputFeatureNames());
+    }
+
+    @Test
+    public void testTopN() {
+        MyVariableContext varCtx = new MyVariableContext("owt");
+        Aggregator agg = new AggregatorMajorityClass(varCtx, "owt", new int[]{1, 3, 5, 7, 9}, AggregatorMajorityClass.TieBreak.LOWEST_CLASS, null, 2);
+
+        VectorImpl svec = vec(NaN, NaN, NaN, NaN, NaN, NaN);
+        VectorImpl tvec = vec(NaN, NaN, NaN, NaN, NaN, NaN);
+        VectorImpl out = vec(NaN, NaN, NaN, NaN, NaN, NaN, NaN, NaN);
+
+        agg.initSpatial(ctx, svec);
+        assertVectorEquals(vec(NaN, 0, NaN, 0, 0, 0), svec);
+        aggregateSpatial(agg, svec, 5f, 3f, 3f, NaN, 4f, 5f, 3f, 9f);
+        // 9 replaces 5, the pair with the least counts, and inherits its counts
+        assertVectorEquals(vec(1, 3, 4, 3, 1, 2), svec);
+        agg.initTemporal(ctx, tvec);
+        agg.aggregateTemporal(ctx, svec, 8, tvec);
+        assertVectorEquals(vec(1, 3, 4, 3, 1, 2), tvec);
+
+        agg.initSpatial(ctx, svec);
+        aggregateSpatial(agg, svec, 1f, 1f, 1f, 1f, 5f);
+        assertVectorEquals(vec(0, 4, 2, 1, 0, 0), svec);
+        agg.aggregateTemporal(ctx, svec, 5, tvec);
+        // 1 replaces 9 and 5 replaces 3, the spatial error adds to the largest inherited counts
+        assertVectorEquals(vec(0, 7, 2, 4, 1, 3), tvec);
+
+        agg.completeTemporal(ctx, 2, tvec);
+        agg.computeOutput(tvec, out);
+        assertVectorEquals(vec(1, 7, 5, 4, 12, 11, 1, 3), out);
+    }
+
+    @Test
+    public void testTopN_laterClassWins() {
+        MyVariableContext varCtx = new MyVariableContext("owt");
+        Aggregator agg = new AggregatorMajorityClass(varCtx, "owt", new int[]{1, 3, 5}, AggregatorMajorityClass.TieBreak.LOWEST_CLASS, null, 2);
+
+        VectorImpl svec = vec(NaN, NaN, NaN, NaN, NaN, NaN);
+        VectorImpl tvec = vec(NaN, NaN, NaN, NaN, NaN, NaN);
+        VectorImpl out = vec(NaN, NaN, NaN, NaN, NaN, NaN, NaN, NaN);
+
+        agg.initSpatial(ctx, svec);
+        aggregateSpatial(agg, svec, 1f, 3f, 5f, 5f, 5f, 5f);
+        // 5 replaces 3, which had the least counts, and then outgrows 1
+        assertVectorEquals(vec(2, 5, 0, 1, 0, 1), svec);
+        agg.initTemporal(ctx, tvec);
+        agg.aggregateTemporal(ctx, svec, 6, tvec);
+        agg.completeTemporal(ctx, 1, tvec);
+        agg.computeOutput(tvec, out);
+        assertVectorEquals(vec(5, 5, 1, 1, 6, 6, 5, 1), out);
+    }
+
+    @Test
+    public void testTopN_errorBoundsCounts() {
+        MyVariableContext varCtx = new MyVariableContext("owt");
+        int[] classes = {10, 20, 30, 40, 50, 60, 70, 80};
+        Aggregator agg = new AggregatorMajorityClass(varCtx, "owt", classes, AggregatorMajorityClass.TieBreak.LOWEST_CLASS, null, 3);
+        Random random = new Random(42);
+        for (int n = 0; n < 100; n++) {
+            VectorImpl svec = new VectorImpl(new float[agg.getSpatialFeatureNames().length]);
+            int[] trueCounts = new int[classes.length];
+            agg.initSpatial(ctx, svec);
+            for (int j = 0; j < 50; j++) {
+                // skewed, so that there is a majority
+                int i = Math.min(random.nextInt(classes.length), random.nextInt(classes.length));
+                trueCounts[i]++;
+                agg.aggregateSpatial(ctx, obsNT(classes[i]), svec);
+            }
+            float error = svec.get(7);
+            float sum = 0;
+            for (int k = 0; k < 3; k++) {
+                sum += svec.get(2 * k + 1);
+            }
+            assertEquals(50, sum, 0f);
+            for (int i = 0; i < classes.length; i++) {
+                float counts = 0;
+                for (int k = 0; k < 3; k++) {
+                    if (svec.get(2 * k) == i) {
+                        counts = svec.get(2 * k + 1);
+                    }
+                }
+                assertEquals(trueCounts[i], counts, error);
+            }
+        }
+    }
+
+    @Test
+    public void testTopNSameAsDense() {
+        MyVariableContext varCtx = new MyVariableContext("owt");
+        int[] classes = {10, 20, 30, 40, 50, 60};
+        Random random = new Random(42);
+        for (AggregatorMajorityClass.TieBreak tieBreak : AggregatorMajorityClass.TieBreak.values()) {
+            Aggregator dense = new AggregatorMajorityClass(varCtx, "owt", classes, tieBreak, "2017-06-01", 0);
+            Aggregator top = new AggregatorMajorityClass(varCtx, "owt", classes, tieBreak, "2017-06-01", 3);
+            for (int binIndex = 0; binIndex < 100; binIndex++) {
+                // at most 3 distinct classes per bin
+                float[] binClasses = {classes[random.nextInt(6)], classes[random.nextInt(6)], classes[random.nextInt(6)], 15f};
+                Observation[][] observations = new Observation[3][];
+                for (int i = 0; i < observations.length; i++) {
+                    observations[i] = new Observation[random.nextInt(5)];
+                    for (int j = 0; j < observations[i].length; j++) {
+                        observations[i][j] = obsNT(binClasses[random.nextInt(4)]);
+                    }
+                }
+                BinContext binContext = AggregatorTestUtils.createCtx(binIndex);
+                VectorImpl denseOut = aggregate(dense, binContext, observations);
+                VectorImpl topOut = aggregate(top, binContext, observations);
+                float majorityClass = denseOut.get(classes.length + 2);
+                if (denseOut.get(classes.length + 1) == 0) {
+                    // only other classes
+                    majorityClass = NaN;
+                }
+                assertEquals(denseOut.get(classes.length), topOut.get(6), 0f);
+                assertEquals(denseOut.get(classes.length + 1), topOut.get(7), 0f);
+                assertEquals(majorityClass, topOut.get(8), 0f);
+                for (int k = 0; k < 3; k++) {
+                    float topClass = topOut.get(2 * k);
+                    if (!Float.isNaN(topClass)) {
+                        assertEquals(denseOut.get(Arrays.binarySearch(classes, (int) topClass)), topOut.get(2 * k + 1), 0f);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void aggregateSpatial(Aggregator agg, VectorImpl svec, float... values) {
+        for (float value : values) {
+            agg.aggregateSpatial(null, obsNT(value), svec);
+        }
+    }
+
+    private static VectorImpl aggregate(Aggregator agg, BinContext ctx, Observation[][] observations) {
+        VectorImpl tvec = new VectorImpl(new float[agg.getTemporalFeatureNames().length]);
+        VectorImpl out = new VectorImpl(new float[agg.getOutputFeatureNames().length]);
+        agg.initTemporal(ctx, tvec);
+        for (Observation[] spatialObservations : observations) {
+            VectorImpl svec = new VectorImpl(new float[agg.getSpatialFeatureNames().length]);
+            agg.initSpatial(ctx, svec);
+            for (Observation observation : spatialObservations) {
+                agg.aggregateSpatial(ctx, observation, svec);
+            }
+            agg.completeSpatial(ctx, spatialObservations.length, svec);
+            agg.aggregateTemporal(ctx, svec, spatialObservations.length, tvec);
+        }
+        agg.completeTemporal(ctx, observations.length, tvec);
+        agg.computeOutput(tvec, out);
+        return out;
+    }
+}
@@ -23,12 +23,16 @@ import org.esa.snap.binning.VariableContext;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Random;
+
 import static com.bc.snap.cglops.l3.AggregatorTestUtils.aggregate;
 import static com.bc.snap.cglops.l3.AggregatorTestUtils.assertVectorEquals;
 import static com.bc.snap.cglops.l3.AggregatorTestUtils.obsNT;
 import static com.bc.snap.cglops.l3.AggregatorTestUtils.vec;
 import static java.lang.Float.NaN;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class AggregatorMappingTest {
 
@@ -95,4 +99,89 @@ public class AggregatorMappingTest {
         };
         assertVectorEquals(vec(50), aggregate(bm, multipleProductObs));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testInvalidBounds() {
+        try {
+            new AggregatorMapping(varCtx, "r1", "map", new float[]{1, 3, 2}, new float[]{42, 50}, -1f);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("bounds must not decrease, but bounds[2] < bounds[1]", e.getMessage());
+        }
+        try {
+            new AggregatorMapping(varCtx, "r1", "map", new float[]{1, NaN, 2}, new float[]{42, 50}, -1f);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("bounds[1] is NaN", e.getMessage());
+        }
+        try {
+            new AggregatorMapping(varCtx, "r1", "map", new float[]{1, 2}, new float[]{42, 50}, -1f);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("There are 2 codes, but only 1 ranges", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDefaultCodes() {
+        AggregatorMapping.Descriptor descriptor = new AggregatorMapping.Descriptor();
+        AggregatorMapping.Config config = (AggregatorMapping.Config) descriptor.createConfig();
+        config.varName = "r1";
+        config.bounds = new float[]{1, 3, 5};
+        AggregatorMapping agg = (AggregatorMapping) descriptor.createAggregator(varCtx, config);
+
+        assertEquals(0f, agg.mapToIndex(1), 0f);
+        assertEquals(1f, agg.mapToIndex(4.9), 0f);
+        assertEquals(NaN, agg.mapToIndex(5), 0f);
+        assertEquals(NaN, agg.mapToIndex(0.9), 0f);
+    }
+
+    @Test
+    public void testSameAsLinearScan() {
+        Random random = new Random(42);
+        for (int n = 1; n < 60; n++) {
+            for (int kind = 0; kind < 3; kind++) {
+                float[] bounds = new float[n + 1];
+                float[] codes = new float[n];
+                for (int i = 0; i <= n; i++) {
+                    switch (kind) {
+                        case 0:
+                            // uniform
+                            bounds[i] = -2.5f + 0.1f * i;
+                            break;
+                        case 1:
+                            // nearly uniform
+                            bounds[i] = 10 + i + random.nextFloat() * 1e-4f;
+                            break;
+                        default:
+                            // irregular, with empty ranges
+                            bounds[i] = i == 0 ? random.nextFloat() : bounds[i - 1] + (random.nextInt(4) == 0 ? 0 : random.nextFloat());
+                    }
+                }
+                for (int i = 0; i < n; i++) {
+                    codes[i] = 100 + i;
+                }
+                AggregatorMapping agg = new AggregatorMapping(varCtx, "r1", "map", bounds, codes, -1);
+                for (int i = 0; i <= n; i++) {
+                    assertMapsLikeLinearScan(agg, bounds, codes, bounds[i]);
+                    assertMapsLikeLinearScan(agg, bounds, codes, Math.nextDown(bounds[i]));
+                    assertMapsLikeLinearScan(agg, bounds, codes, Math.nextUp((double) bounds[i]));
+                }
+                for (int i = 0; i < 100; i++) {
+                    assertMapsLikeLinearScan(agg, bounds, codes, bounds[0] - 1 + random.nextDouble() * (bounds[n] - bounds[0] + 2));
+                }
+            }
+        }
+    }
+
+    private static void assertMapsLikeLinearScan(AggregatorMapping agg, float[] bounds, float[] codes, double value) {
+        float expected = -1;
+        for (int i = 0; i < codes.length; i++) {
+            if (value >= bounds[i] && value < bounds[i + 1]) {
+                expected = codes[i];
+                break;
+            }
+        }
+        assertEquals("value " + value, expected, agg.mapToIndex(value), 0f);
+    }
+}
@@ -35,7 +35,6 @@ import static java.lang.Float.NaN;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
-import static org.junit.Assert.fail;
 
 public class AggregatorObservationPeriodTest {
 
@@ -55,7 +54,7 @@ public class AggregatorObservationPeriodTest {
         varCtx = new MyVariableContext();
         AggregatorObservationPeriod agg = new AggregatorObservationPeriod(varCtx, "2011-03-04", "first_obs", "last_obs");
 
-        assertArrayEquals(new String[]{"day"}, agg.getSpatialFeatureNames());
+        assertArrayEquals(new String[]{"first_day", "last_day"}, agg.getSpatialFeatureNames());
         assertArrayEquals(new String[]{"first_obs", "last_obs"}, agg.getTemporalFeatureNames());
         assertArrayEquals(new String[]{"first_obs", "last_obs"}, agg.getOutputFeatureNames());
     }
@@ -65,18 +64,21 @@ public class AggregatorObservationPeriodTest {
         BinContext ctx = AggregatorTestUtils.createCtx();
         AggregatorObservationPeriod agg = new AggregatorObservationPeriod(varCtx, "2011-03-04", "first_obs", "last_obs");
 
-        VectorImpl svec = vec(42);
+        VectorImpl svec = vec(42, 42);
         VectorImpl tvec = vec(NaN, NaN);
         VectorImpl ovec = vec(NaN, NaN);
         /////////////////////////////////////////////
         agg.initSpatial(ctx, svec);
         assertTrue(Float.isNaN(svec.get(0)));
+        assertTrue(Float.isNaN(svec.get(1)));
 
         agg.aggregateSpatial(ctx, obs(mjd("2011-03-05 11:22:33")), svec);
         assertEquals(1, svec.get(0), 0.0f);
+        assertEquals(1, svec.get(1), 0.0f);
 
         agg.completeSpatial(ctx, 1, svec);
         assertEquals(1, svec.get(0), 0.0f);
+        assertEquals(1, svec.get(1), 0.0f);
         /////////////////////////////////////////////
         agg.initTemporal(ctx, tvec);
         assertEquals(Float.POSITIVE_INFINITY, tvec.get(0), 0.0f);
@@ -118,17 +120,45 @@ public class AggregatorObservationPeriodTest {
         };
         assertVectorEquals(vec(1.0f, 5.0f), aggregate(bm, multipleProductObs));
 
-        // multiple obs fro single product
+        // multiple obs from single product, as with BINNING
         multipleProductObs = new Observation[][]{
-                {obs(mjd("2011-03-05 11:22:33")),
-                        obs(mjd("2011-03-06 11:22:33"))},
-                {obs(mjd("2011-03-09 11:22:33"))}
+                {obs(mjd("2011-03-06 11:22:33")),
+                        obs(mjd("2011-03-05 23:59:33"))},
+                {obs(mjd("2011-03-09 11:22:33")),
+                        obs(mjd("2011-03-10 00:00:33"))}
+        };
+        assertVectorEquals(vec(1.0f, 6.0f), aggregate(bm, multipleProductObs));
+    }
+
+    @Test
+    public void testMetadata_mask() {
+        AggregatorObservationPeriod agg = new AggregatorObservationPeriod(varCtx, "2011-03-04", "first_obs", "last_obs", "obs_days", 33);
+
+        assertArrayEquals(new String[]{"first_day", "last_day"}, agg.getSpatialFeatureNames());
+        assertArrayEquals(new String[]{"first_obs", "last_obs", "obs_days_1", "obs_days_2", "obs_days_3"}, agg.getTemporalFeatureNames());
+        assertArrayEquals(new String[]{"first_obs", "last_obs", "obs_days_1", "obs_days_2", "obs_days_3"}, agg.getOutputFeatureNames());
+    }
+
+    @Test
+    public void testAggregate_e2e_mask() throws Exception {
+        AggregatorObservationPeriod agg = new AggregatorObservationPeriod(varCtx, "2011-03-04", "first_obs", "last_obs", "obs_days", 32);
+        BinManager bm = new BinManager(varCtx, agg);
+
+        // no obs
+        Observation[][] multipleProductObs = new Observation[][]{{}};
+        assertVectorEquals(vec(NaN, NaN, 0, 0), aggregate(bm, multipleProductObs));
+
+        multipleProductObs = new Observation[][]{
+                {obs(mjd("2011-03-05 11:22:33"))},
+                {obs(mjd("2011-03-06 11:22:33"))},
+                {obs(mjd("2011-03-06 12:22:33"))},
+                // spans midnight
+                {obs(mjd("2011-03-19 23:59:33")), obs(mjd("2011-03-20 00:00:33"))},
+                {obs(mjd("2011-04-04 11:22:33"))},
+                // outside of the mask
+                {obs(mjd("2011-04-05 11:22:33"))},
+                {obs(mjd("2011-03-02 11:22:33"))}
         };
-        try {
-            aggregate(bm, multipleProductObs);
-            fail();
-        } catch (IllegalArgumentException iae) {
-            assertEquals("This aggregator only supports MOSAICKING", iae.getMessage());
-        }
+        assertVectorEquals(vec(-1, 32, (1 << 1) | (1 << 2) | (1 << 15), 1 | (1 << 15)), aggregate(bm, multipleProductObs));
     }
 }
@@ -22,21 +22,32 @@ import com.thoughtworks.xstream.io.xml.XppDomWriter;
 import com.thoughtworks.xstream.io.xml.XppReader;
 import com.thoughtworks.xstream.io.xml.xppdom.XppDom;
 import org.esa.snap.binning.Aggregator;
+import org.esa.snap.binning.BinContext;
 import org.esa.snap.binning.AggregatorConfig;
 import org.esa.snap.binning.BinManager;
 import org.esa.snap.binning.Observation;
 import org.esa.snap.binning.VariableContext;
+import org.esa.snap.binning.Vector;
 import org.esa.snap.binning.operator.AggregatorConfigDomConverter;
+import org.esa.snap.binning.support.VectorImpl;
 import org.esa.snap.core.datamodel.ProductData;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.StringReader;
 import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
 
 import static com.bc.snap.cglops.l3.AggregatorRepresentativeSpectrum.computeMedian;
 import static com.bc.snap.cglops.l3.AggregatorRepresentativeSpectrum.computeMedianSpectrum;
+import static com.bc.snap.cglops.l3.AggregatorRepresentativeSpectrum.histogramMedian;
+import static com.bc.snap.cglops.l3.AggregatorRepresentativeSpectrum.selectMedian;
 import static com.bc.snap.cglops.l3.AggregatorTestUtils.aggregate;
+import static com.bc.snap.cglops.l3.AggregatorTestUtils.assertDoesNotAllocate;
 import static com.bc.snap.cglops.l3.AggregatorTestUtils.assertVectorEquals;
 import static com.bc.snap.cglops.l3.AggregatorTestUtils.obs;
 import static com.bc.snap.cglops.l3.AggregatorTestUtils.obsNT;
@@ -45,7 +56,10 @@ import static java.lang.Float.NaN;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class AggregatorRepresentativeSpectrumTest {
 
@@ -65,25 +79,90 @@ public class AggregatorRepresentativeSpectrumTest {
         assertEquals(2.5f, computeMedian(1f, 2f, 3f, 4f), 1E-6);
     }
 
+    @Test
+    public void testSelectMedian() throws Exception {
+        assertEquals(1f, selectMedian(new float[]{1f}, 1), 0f);
+        assertEquals(2f, selectMedian(new float[]{3f, 1f}, 2), 0f);
+        assertEquals(1f, selectMedian(new float[]{3f, 1f, 1f}, 3), 0f);
+        assertEquals(2.5f, selectMedian(new float[]{4f, 2f, 3f, 1f}, 4), 0f);
+        // only the given length is used
+        assertEquals(2f, selectMedian(new float[]{3f, 1f, 2f, 99f, 99f}, 3), 0f);
+    }
+
+    @Test
+    public void testSelectMedian_identicalToSortedMedian() throws Exception {
+        Random random = new Random(42);
+        for (int n = 1; n <= 300; n++) {
+            for (int run = 0; run < 10; run++) {
+                float[] values = new float[n];
+                for (int i = 0; i < n; i++) {
+                    switch (run % 3) {
+                        case 0:
+                            values[i] = random.nextFloat();
+                            break;
+                        case 1:
+                            // many ties
+                            values[i] = random.nextInt(3);
+                            break;
+                        default:
+                            values[i] = random.nextBoolean() ? 0.0f : -0.0f;
+                    }
+                }
+                float[] sorted = values.clone();
+                Arrays.sort(sorted);
+                float expected = computeMedian(sorted);
+                float actual = selectMedian(values.clone(), n);
+                assertEquals("n=" + n, Float.floatToRawIntBits(expected), Float.floatToRawIntBits(actual));
+            }
+        }
+    }
+
+    @Test
+    public void testHistogramMedian_identicalToSortedMedian() throws Exception {
+        Random random = new Random(42);
+        SpectrumEncoding encoding = new SpectrumEncoding(new float[]{1e-4f, 0.3f}, new float[]{-0.1f, 7}, false);
+        int[] counts = new int[0];
+        for (int n = 1; n <= 200; n++) {
+            for (int band = 0; band < 2; band++) {
+                short[] codes = new short[n];
+                float[] values = new float[n];
+                int minCode = Integer.MAX_VALUE;
+                int maxCode = Integer.MIN_VALUE;
+                for (int i = 0; i < n; i++) {
+                    codes[i] = (short) (random.nextInt(2 * n + 1) - n);
+                    values[i] = encoding.decode(band, codes[i]);
+                    minCode = Math.min(minCode, codes[i]);
+                    maxCode = Math.max(maxCode, codes[i]);
+                }
+                int range = maxCode - minCode + 1;
+                if (counts.length < range) {
+                    counts = new int[range];
+                }
+                Arrays.sort(values);
+                float expected = computeMedian(values);
+                float actual = histogramMedian(codes, n, minCode, range, counts, encoding, band);
+                assertEquals("n=" + n, Float.floatToRawIntBits(expected), Float.floatToRawIntBits(actual));
+            }
+        }
+    }
+
     @Test
     public void testComputeMedianSpectrum() throws Exception {
         final int numVars = 3;
         final int numSpectra = 5;
-        float[][] data = {
-                {1, 2, 3, 2, 4},
-                {2, 2, 4, 3, 6},
-                {4, 4, 7, 4, 7},
+        float[] spectra = {
+                1, 2, 4,
+                2, 2, 4,
+                3, 4, 7,
+                2, 3, 4,
+                4, 6, 7,
         };
-        double[][] allSpectra = new double[numSpectra][numVars];
 
-        double[] medianSpectrum = computeMedianSpectrum(data, allSpectra);
+        double[] medianSpectrum = computeMedianSpectrum(spectra, numSpectra, numVars);
         assertArrayEquals(new double[]{2f, 3f, 4f}, medianSpectrum, 1E-5f);
 
-        assertArrayEquals(new double[]{1f, 2f, 4f}, allSpectra[0], 1E-5f);
-        assertArrayEquals(new double[]{2f, 2f, 4f}, allSpectra[1], 1E-5f);
-        assertArrayEquals(new double[]{3f, 4f, 7f}, allSpectra[2], 1E-5f);
-        assertArrayEquals(new double[]{2f, 3f, 4f}, allSpectra[3], 1E-5f);
-        assertArrayEquals(new double[]{4f, 6f, 7f}, allSpectra[4], 1E-5f);
+        // the spectra are left untouched
+        assertArrayEquals(new float[]{1, 2, 4, 2, 2, 4, 3, 4, 7, 2, 3, 4, 4, 6, 7}, spectra, 0f);
     }
 
     @Test
@@ -151,12 +230,42 @@ public class AggregatorRepresentativeSpectrumTest {
         assertEquals(0.008241758241758323, value, 1E-5);
     }
 
+    @Test
+    public void testPreparedScorer() throws Exception {
+        double[] medianSpectrum = {2, 3, 4};
+        double[][] spectra = {{3, 4, 7}, {1, 3, 7}, {2, 3, 4}, {0.5, 8, 1}};
+        float[] block = {3, 4, 7, 1, 3, 7, 2, 3, 4, 0.5f, 8, 1};
+        for (AggregatorRepresentativeSpectrum.Method method : AggregatorRepresentativeSpectrum.Method.values()) {
+            AggregatorRepresentativeSpectrum.Scorer scorer = method.prepare(medianSpectrum.clone());
+            for (int i = 0; i < spectra.length; i++) {
+                // the CoeffOfDetermination scorer sums up in a single pass, so it may differ in the last bits
+                assertEquals(method.name(), method.compute(spectra[i], medianSpectrum), scorer.score(block, i * 3), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testComputeDoesNotAllocate() {
+        final double[] medianSpectrum = {2, 3, 4};
+        final double[] spectrum = {3, 4, 7};
+        // the scores are summed up, so the calls can not be eliminated
+        final double[] sum = new double[1];
+        for (final AggregatorRepresentativeSpectrum.Method method : AggregatorRepresentativeSpectrum.Method.values()) {
+            assertDoesNotAllocate(method.name(), new Runnable() {
+                @Override
+                public void run() {
+                    sum[0] += method.compute(spectrum, medianSpectrum);
+                }
+            });
+        }
+    }
+
     @Test
     public void testMetadata() {
         String[] varNames = {"r1", "r2", "r3"};
         Aggregator agg = new AggregatorRepresentativeSpectrum(varCtx, "", null, AggregatorRepresentativeSpectrum.Method.SpectralAngle, "", varNames, varNames);
 
-        assertArrayEquals(new String[]{"r1", "r2", "r3"}, agg.getSpatialFeatureNames());
+        assertArrayEquals(new String[]{"r1", "r2", "r3", "num_obs"}, agg.getSpatialFeatureNames());
         assertArrayEquals(new String[]{"r1", "r2", "r3"}, agg.getTemporalFeatureNames());
         assertArrayEquals(new String[]{"r1", "r2", "r3"}, agg.getOutputFeatureNames());
     }
@@ -166,7 +275,7 @@ public class AggregatorRepresentativeSpectrumTest {
         String[] varNames = {"r1", "r2", "r3"};
         Aggregator agg = new AggregatorRepresentativeSpectrum(varCtx, "", null, AggregatorRepresentativeSpectrum.Method.SpectralAngle, "foo", varNames, varNames);
 
-        assertArrayEquals(new String[]{"r1_foo", "r2_foo", "r3_foo"}, agg.getSpatialFeatureNames());
+        assertArrayEquals(new String[]{"r1_foo", "r2_foo", "r3_foo", "num_obs"}, agg.getSpatialFeatureNames());
         assertArrayEquals(new String[]{"r1_foo", "r2_foo", "r3_foo"}, agg.getTemporalFeatureNames());
         assertArrayEquals(new String[]{"r1_foo", "r2_foo", "r3_foo"}, agg.getOutputFeatureNames());
     }
@@ -176,11 +285,48 @@ public class AggregatorRepresentativeSpectrumTest {
         String[] varNames = {"r1", "r2", "r3"};
         Aggregator agg = new AggregatorRepresentativeSpectrum(varCtx, "2002-01-01", "super_date", AggregatorRepresentativeSpectrum.Method.SpectralAngle, "foo", varNames, varNames);
 
-        assertArrayEquals(new String[]{"r1_foo", "r2_foo", "r3_foo", "day"}, agg.getSpatialFeatureNames());
+        assertArrayEquals(new String[]{"r1_foo", "r2_foo", "r3_foo", "day", "num_obs"}, agg.getSpatialFeatureNames());
         assertArrayEquals(new String[]{"r1_foo", "r2_foo", "r3_foo", "super_date"}, agg.getTemporalFeatureNames());
         assertArrayEquals(new String[]{"r1_foo", "r2_foo", "r3_foo", "super_date"}, agg.getOutputFeatureNames());
     }
     
+    @Test
+    public void testConfigValidation() {
+        String[] varNames = {"r1", "r2", "r3"};
+        AggregatorRepresentativeSpectrum.Config config = createConfig("2011-03-04", "best", varNames, AggregatorRepresentativeSpectrum.Method.SpectralAngle);
+        config.maxSpectra = 10;
+        config.spillThreshold = 100;
+        assertInvalid(config, "'maxSpectra' and 'spillThreshold' can not be combined.");
+
+        config = createConfig("2011-03-04", "best", varNames, AggregatorRepresentativeSpectrum.Method.SpectralAngle);
+        config.maxSpectra = 10;
+        config.partialStateFile = "state.bin";
+        assertInvalid(config, "'maxSpectra' can not be combined with partial states.");
+
+        config = createConfig("2011-03-04", null, varNames, AggregatorRepresentativeSpectrum.Method.SpectralAngle);
+        config.windowDays = 3;
+        assertInvalid(config, "'windowDays' requires 'bestObsDateName'.");
+
+        config = createConfig("2011-03-04", "best", varNames, AggregatorRepresentativeSpectrum.Method.SpectralAngle);
+        config.encodingScales = new float[]{0.5f, 0.5f};
+        assertInvalid(config, "'encodingScales' must have one value or one per variable in 'varNames'.");
+
+        // nothing would write the partial states without an operator finishing the aggregators
+        config = createConfig("2011-03-04", "best", varNames, AggregatorRepresentativeSpectrum.Method.SpectralAngle);
+        config.partialStateFile = "state.bin";
+        assertInvalid(config, "'partialStateFile', 'partialStates' and 'spillThreshold' " +
+                              "require an operator finishing the aggregators, e.g. LakeAggregate.");
+    }
+
+    private void assertInvalid(AggregatorRepresentativeSpectrum.Config config, String message) {
+        try {
+            new AggregatorRepresentativeSpectrum.Descriptor().createAggregator(varCtx, config);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
     @Test
     public void testAggregate_e2e_SpectralAngle_withSearchVars() throws Exception {
         String[] varNames = {"r1", "r1a", "r2", "r3"};
@@ -245,7 +391,41 @@ public class AggregatorRepresentativeSpectrumTest {
         };
         assertVectorEquals(vec(1, 3, 7, 3), aggregate(bm, multipleProductObs));
     }
-    
+
+    @Test
+    public void testAggregate_e2e_binning() throws Exception {
+        String[] varNames = {"r1", "r2", "r3"};
+        Aggregator agg = new AggregatorRepresentativeSpectrum(varCtx, "2011-03-04", "theBestDate", AggregatorRepresentativeSpectrum.Method.RMSDifference, "", varNames, varNames);
+        BinManager bm = new BinManager(varCtx, agg);
+
+        // several obs per pass: the observed spectrum closest to the mean with its day, NaN spectra ignored
+        Observation[][] multipleProductObs = new Observation[][]{
+                {obs(mjd("2011-03-06 00:00:33"), 1, 99, 2, 6),
+                        obs(mjd("2011-03-05 23:59:33"), 3, 99, 4, 8),
+                        obs(mjd("2011-03-05 23:59:50"), 2, 99, 3, 6.5f),
+                        obs(mjd("2011-03-05 23:59:03"), NaN, 99, 1, 1)},
+                {obs(mjd("2011-03-07 11:22:33"), 2, 99, 3, 5)},
+                {obs(mjd("2011-03-08 11:22:33"), 10, 99, 10, 10),
+                        obs(mjd("2011-03-08 11:22:35"), 10, 99, 10, 10)},
+        };
+        assertVectorEquals(vec(2, 3, 6.5f, 1), aggregate(bm, multipleProductObs));
+
+        // of equal distances to the mean, the first observation of the pass is kept
+        multipleProductObs = new Observation[][]{
+                {obs(mjd("2011-03-06 00:00:33"), 1, 99, 2, 6),
+                        obs(mjd("2011-03-05 23:59:33"), 3, 99, 4, 8)},
+        };
+        assertVectorEquals(vec(1, 2, 6, 2), aggregate(bm, multipleProductObs));
+
+        // a pass with invalid spectra only
+        multipleProductObs = new Observation[][]{
+                {obs(mjd("2011-03-05 11:22:33"), NaN, 99, 2, 6),
+                        obs(mjd("2011-03-05 11:22:34"), 3, 99, NaN, 8)},
+                {obs(mjd("2011-03-07 11:22:33"), 2, 99, 3, 5)},
+        };
+        assertVectorEquals(vec(2, 3, 5, 3), aggregate(bm, multipleProductObs));
+    }
+
     @Test
     public void testAggregate_e2e_SpectralAngle() throws Exception {
         String[] varNames = {"r1", "r2", "r3"};
@@ -344,6 +524,486 @@ public class AggregatorRepresentativeSpectrumTest {
         assertVectorEquals(vec(2, 99, 3, 5), aggregate(bm, multipleProductObs));
     }
 
+    @Test
+    public void testAggregate_e2e_maxSpectra() throws Exception {
+        String[] varNames = {"r1", "r2", "r3"};
+        AggregatorRepresentativeSpectrum.Config config = createConfig("", null, varNames, AggregatorRepresentativeSpectrum.Method.RMSDifference);
+        config.maxSpectra = 2;
+        Aggregator agg = new AggregatorRepresentativeSpectrum(varCtx, config);
+        assertArrayEquals(new String[]{"r1", "r2", "r3", "num_obs"}, agg.getSpatialFeatureNames());
+        assertArrayEquals(new String[]{"r1", "r2", "r3", "num_spectra"}, agg.getTemporalFeatureNames());
+        assertArrayEquals(new String[]{"r1", "r2", "r3", "num_spectra"}, agg.getOutputFeatureNames());
+        BinManager bm = new BinManager(varCtx, agg);
+
+        // 0 obs
+        Observation[][] multipleProductObs = new Observation[][]{{}};
+        assertVectorEquals(vec(NaN, NaN, NaN, 0), aggregate(bm, multipleProductObs));
+
+        // 2 obs: below the limit, same as unbounded
+        multipleProductObs = new Observation[][]{
+                {obsNT(1, 99, 3, 7)},
+                {obsNT(2, 99, 3, 7)}
+        };
+        assertVectorEquals(vec(1, 3, 7, 2), aggregate(bm, multipleProductObs));
+
+        // 4 obs: 2 are sampled, all are counted
+        multipleProductObs = new Observation[][]{
+                {obsNT(1, 99, 3, 7)},
+                {obsNT(1, 99, 3, 7)},
+                {obsNT(1, 99, 3, 7)},
+                {obsNT(NaN, 99, 3, 7)},
+                {obsNT(1, 99, 3, 7)},
+        };
+        assertVectorEquals(vec(1, 3, 7, 4), aggregate(bm, multipleProductObs));
+    }
+
+    @Test
+    public void testAggregate_e2e_numBestSpectra() throws Exception {
+        String[] varNames = {"r1", "r2", "r3"};
+        AggregatorRepresentativeSpectrum.Config config = createConfig("2011-03-04", "day", varNames, AggregatorRepresentativeSpectrum.Method.RMSDifference);
+        config.numBestSpectra = 3;
+        AggregatorRepresentativeSpectrum agg = new AggregatorRepresentativeSpectrum(varCtx, config);
+        assertArrayEquals(new String[]{"r1", "r2", "r3", "day",
+                "r1_rank2", "r2_rank2", "r3_rank2", "day_rank2",
+                "r1_rank3", "r2_rank3", "r3_rank3", "day_rank3",
+                "score", "score_rank2", "score_rank3"}, agg.getOutputFeatureNames());
+        BinManager bm = new BinManager(varCtx, agg);
+
+        // 1 obs: only one rank, it is its own median and has the best score
+        Observation[][] multipleProductObs = new Observation[][]{
+                {obs(mjd("2011-03-05 11:22:33"), 1, 99, 3, 7)}
+        };
+        assertVectorEquals(vec(1, 3, 7, 1, NaN, NaN, NaN, NaN, NaN, NaN, NaN, NaN, 0, NaN, NaN), aggregate(bm, multipleProductObs));
+
+        // 4 obs: median is (1.5, 3, 7)
+        multipleProductObs = new Observation[][]{
+                {obs(mjd("2011-03-05 11:22:33"), 1, 99, 3, 7)},
+                {obs(mjd("2011-03-06 11:22:33"), 2, 99, 3, 5)},
+                {obs(mjd("2011-03-07 11:22:33"), 1, 99, 3, 7)},
+                {obs(mjd("2011-03-08 11:22:33"), 9, 99, 9, 9)},
+        };
+        float rms1 = (float) Math.sqrt(0.25 / 3);
+        float rms2 = (float) Math.sqrt((0.25 + 4) / 3);
+        assertVectorEquals(vec(1, 3, 7, 1,
+                               1, 3, 7, 3,
+                               2, 3, 5, 2,
+                               rms1, rms1, rms2), aggregate(bm, multipleProductObs));
+    }
+
+    @Test
+    public void testAggregate_e2e_multipleMethods() throws Exception {
+        String[] varNames = {"r1", "r2", "r3"};
+        AggregatorRepresentativeSpectrum.Method[] methods = {
+                AggregatorRepresentativeSpectrum.Method.SpectralAngle,
+                AggregatorRepresentativeSpectrum.Method.RMSDifference,
+                AggregatorRepresentativeSpectrum.Method.CoeffOfDetermination
+        };
+        AggregatorRepresentativeSpectrum agg = new AggregatorRepresentativeSpectrum(varCtx, createConfig("2011-03-04", "day", varNames, methods));
+        assertArrayEquals(new String[]{"r1_SpectralAngle", "r2_SpectralAngle", "r3_SpectralAngle", "day_SpectralAngle",
+                "r1_RMSDifference", "r2_RMSDifference", "r3_RMSDifference", "day_RMSDifference",
+                "r1_CoeffOfDetermination", "r2_CoeffOfDetermination", "r3_CoeffOfDetermination", "day_CoeffOfDetermination"},
+                          agg.getOutputFeatureNames());
+
+        Observation[][] multipleProductObs = new Observation[][]{
+                {obs(mjd("2011-03-05 11:22:33"), 1, 99, 1.5f, 4)},
+                {obs(mjd("2011-03-06 11:22:33"), 2, 99, 3, 5)},
+                {obs(mjd("2011-03-07 11:22:33"), 1, 99, 3, 7)},
+                {obs(mjd("2011-03-08 11:22:33"), 3, 99, 2, 9)},
+        };
+        Vector result = aggregate(new BinManager(varCtx, agg), multipleProductObs);
+        for (int m = 0; m < methods.length; m++) {
+            Aggregator single = new AggregatorRepresentativeSpectrum(varCtx, "2011-03-04", "day", methods[m], "", varNames, varNames);
+            Vector expected = aggregate(new BinManager(varCtx, single), multipleProductObs);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(expected.get(i), result.get(m * 4 + i), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testAggregate_e2e_Medoid() throws Exception {
+        String[] varNames = {"r1", "r2", "r3"};
+        Aggregator agg = new AggregatorRepresentativeSpectrum(varCtx, "", null, AggregatorRepresentativeSpectrum.Method.Medoid, "", varNames, varNames);
+        BinManager bm = new BinManager(varCtx, agg);
+
+        // the per-band median (2, 2, 2) is not observed, the medoid is the spectrum closest to the others
+        Observation[][] multipleProductObs = new Observation[][]{
+                {obsNT(0, 99, 2, 2)},
+                {obsNT(2, 99, 0, 2)},
+                {obsNT(2, 99, 2, 0)},
+                {obsNT(3, 99, 3, 3)},
+                {obsNT(9, 99, 9, 9)},
+        };
+        assertVectorEquals(vec(3, 3, 3), aggregate(bm, multipleProductObs));
+    }
+
+    @Test
+    public void testMedoid_sampledIsCloseToExact() throws Exception {
+        Random random = new Random(42);
+        int numBands = 5;
+        int numSpectra = 2000;
+        float[] spectra = new float[numSpectra * numBands];
+        for (int i = 0; i < spectra.length; i++) {
+            spectra[i] = (float) (0.1 + 0.02 * random.nextGaussian());
+        }
+        AggregatorRepresentativeSpectrum.Scorer scorer = AggregatorRepresentativeSpectrum.Method.Medoid.prepare(new double[numBands]);
+        scorer.prepareSpectra(spectra, numSpectra);
+        int[] bestIndex = new int[1];
+        AggregatorRepresentativeSpectrum.findBestSpectra(scorer, spectra, numSpectra, numBands, bestIndex, new double[1]);
+
+        double[] meanDistances = new double[numSpectra];
+        for (int i = 0; i < numSpectra; i++) {
+            for (int j = 0; j < numSpectra; j++) {
+                double sumSquares = 0;
+                for (int b = 0; b < numBands; b++) {
+                    double difference = spectra[i * numBands + b] - spectra[j * numBands + b];
+                    sumSquares += difference * difference;
+                }
+                meanDistances[i] += Math.sqrt(sumSquares) / numSpectra;
+            }
+        }
+        double exact = meanDistances[0];
+        for (double meanDistance : meanDistances) {
+            exact = Math.min(exact, meanDistance);
+        }
+        assertEquals(exact, meanDistances[bestIndex[0]], 0.02 * exact);
+    }
+
+    @Test
+    public void testFindBestSpectra_keepsEarliestOfEqualScores() throws Exception {
+        AggregatorRepresentativeSpectrum.Scorer scorer = AggregatorRepresentativeSpectrum.Method.RMSDifference.prepare(new double[]{0});
+        float[] spectra = {5, -1, 3, 1, 1, NaN, 0};
+        int[] bestIndices = new int[4];
+        double[] bestScores = new double[4];
+        int numBest = AggregatorRepresentativeSpectrum.findBestSpectra(scorer, spectra, spectra.length, 1, bestIndices, bestScores);
+        assertEquals(4, numBest);
+        assertArrayEquals(new int[]{6, 1, 3, 4}, bestIndices);
+        assertArrayEquals(new double[]{0, 1, 1, 1}, bestScores, 0);
+
+        numBest = AggregatorRepresentativeSpectrum.findBestSpectra(scorer, new float[]{NaN, 2}, 2, 1, bestIndices, bestScores);
+        assertEquals(1, numBest);
+        assertEquals(1, bestIndices[0]);
+    }
+
+    @Test
+    public void testAggregate_e2e_spill() throws Exception {
+        String[] varNames = {"r1", "r1a", "r2", "r3"};
+        String[] searchVarNames = {"r1", "r2", "r3"};
+        // a threshold of zero spills the spectra whenever one is added
+        SpectrumSpill spill = new SpectrumSpill(0, null);
+        AggregatorRepresentativeSpectrum.Config config = createConfig("", null, varNames, AggregatorRepresentativeSpectrum.Method.RMSDifference);
+        config.searchVarNames = searchVarNames;
+        Aggregator agg = new AggregatorRepresentativeSpectrum(varCtx, config, spill);
+        BinManager bm = new BinManager(varCtx, agg);
+
+        // 0 obs
+        Observation[][] multipleProductObs = new Observation[][]{{}};
+        assertVectorEquals(vec(NaN, NaN, NaN, NaN), aggregate(bm, multipleProductObs));
+
+        // 1 obs
+        multipleProductObs = new Observation[][]{
+                {obsNT(1, 99, 3, 7)}
+        };
+        assertVectorEquals(vec(1, 99, 3, 7), aggregate(bm, multipleProductObs));
+
+        // 3 obs
+        multipleProductObs = new Observation[][]{
+                {obsNT(1, 99, 1.5f, 4)},
+                {obsNT(2, 99, 3, 5)},
+                {obsNT(1, 99, 3, 7)},
+        };
+        assertVectorEquals(vec(2, 99, 3, 5), aggregate(bm, multipleProductObs));
+
+        // spilled and loaded again
+        multipleProductObs = new Observation[129][];
+        for (int i = 0; i < multipleProductObs.length; i++) {
+            multipleProductObs[i] = new Observation[]{i % 2 == 0 ? obsNT(1, 99, 1.5f, 4) : obsNT(2, 99, 3, 5)};
+        }
+        multipleProductObs[64] = new Observation[]{obsNT(3, 99, 1.5f, 4)};
+        assertVectorEquals(vec(1, 99, 1.5f, 4), aggregate(bm, multipleProductObs));
+        // all completed bins have released their heap
+        assertEquals(0, spill.getHeapBytes());
+        ((AggregatorRepresentativeSpectrum) agg).finish();
+    }
+
+    @Test
+    public void testAggregate_e2e_spill_manySmallBins() throws Exception {
+        String[] varNames = {"r1", "r2", "r3"};
+        // each bin holds a few spectra only, but together they exceed the threshold
+        SpectrumSpill spill = new SpectrumSpill(1000, null);
+        AggregatorRepresentativeSpectrum.Config config = createConfig("", null, varNames, AggregatorRepresentativeSpectrum.Method.RMSDifference);
+        AggregatorRepresentativeSpectrum spilling = new AggregatorRepresentativeSpectrum(varCtx, config, spill);
+        Aggregator inMemory = new AggregatorRepresentativeSpectrum(varCtx, config, null);
+        BinContext[] spillingContexts = new BinContext[100];
+        BinContext[] inMemoryContexts = new BinContext[spillingContexts.length];
+        VectorImpl temporalVector = new VectorImpl(new float[spilling.getTemporalFeatureNames().length]);
+        for (int b = 0; b < spillingContexts.length; b++) {
+            spillingContexts[b] = AggregatorTestUtils.createCtx(b);
+            inMemoryContexts[b] = AggregatorTestUtils.createCtx(b);
+            spilling.initTemporal(spillingContexts[b], temporalVector);
+            inMemory.initTemporal(inMemoryContexts[b], temporalVector);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 5; i++) {
+            for (int b = 0; b < spillingContexts.length; b++) {
+                VectorImpl spatialVector = vec(random.nextFloat(), random.nextFloat(), random.nextFloat(), 1);
+                spilling.aggregateTemporal(spillingContexts[b], spatialVector, 1, temporalVector);
+                inMemory.aggregateTemporal(inMemoryContexts[b], spatialVector, 1, temporalVector);
+                // the threshold plus the growth of one buffer
+                assertTrue(spill.getHeapBytes() <= 1000 + 1000 / 2 + 3 * 4);
+            }
+        }
+        VectorImpl expected = new VectorImpl(new float[temporalVector.size()]);
+        for (int b = 0; b < spillingContexts.length; b++) {
+            spilling.completeTemporal(spillingContexts[b], 5, temporalVector);
+            inMemory.completeTemporal(inMemoryContexts[b], 5, expected);
+            assertVectorEquals(expected, temporalVector);
+        }
+        assertEquals(0, spill.getHeapBytes());
+        spilling.finish();
+    }
+
+    @Test
+    public void testAggregate_e2e_encoded() throws Exception {
+        String[] varNames = {"r1", "r2", "r3"};
+        AggregatorRepresentativeSpectrum.Config config = createConfig("2011-03-04", "theBestDate", varNames, AggregatorRepresentativeSpectrum.Method.SpectralAngle);
+        config.encodingScales = new float[]{0.5f};
+        Aggregator agg = new AggregatorRepresentativeSpectrum(varCtx, config);
+        BinManager bm = new BinManager(varCtx, agg);
+
+        Observation[][] multipleProductObs = new Observation[][]{
+                {obs(mjd("2011-03-05 11:22:33"), 1, 99, 1.5f, 4)},
+                {obs(mjd("2011-03-06 11:22:33"), 2, 99, 3, 5)},
+                {obs(mjd("2011-03-07 11:22:33"), 1, 99, 3, 7)},
+        };
+        assertVectorEquals(vec(1, 3, 7, 3), aggregate(bm, multipleProductObs));
+
+        // days which can not be encoded are dropped
+        multipleProductObs = new Observation[][]{
+                {obs(mjd("2011-03-03 11:22:33"), 2, 99, 3, 5)},
+                {obs(mjd("2011-03-05 11:22:33"), 1, 99, 1.5f, 4)},
+                {obs(mjd("2011-03-07 11:22:33"), 1, 99, 3, 7)},
+                {obs(mjd("2012-03-07 11:22:33"), 2, 99, 3, 5)},
+        };
+        assertVectorEquals(vec(1, 3, 7, 3), aggregate(bm, multipleProductObs));
+    }
+
+    @Test
+    public void testAggregate_e2e_partialStates() throws Exception {
+        String[] varNames = {"r1", "r2", "r3"};
+        AggregatorRepresentativeSpectrum.Method method = AggregatorRepresentativeSpectrum.Method.SpectralAngle;
+        File day1File = createTempFile();
+        File day2File = createTempFile();
+        File mergedFile = createTempFile();
+
+        AggregatorRepresentativeSpectrum.Config config1 = createConfig("2011-03-05", "best", varNames, method);
+        config1.partialStateFile = day1File.getPath();
+        AggregatorRepresentativeSpectrum agg1 = new AggregatorRepresentativeSpectrum(varCtx, config1);
+        aggregate(new BinManager(varCtx, agg1), new Observation[][]{
+                {obs(mjd("2011-03-05 11:22:33"), 1, 99, 1.5f, 4)},
+                {obs(mjd("2011-03-06 11:22:33"), 2, 99, 3, 5)},
+        });
+        AggregatorRepresentativeSpectrum.Config config2 = createConfig("2011-03-07", "best", varNames, method);
+        config2.partialStateFile = day2File.getPath();
+        AggregatorRepresentativeSpectrum agg2 = new AggregatorRepresentativeSpectrum(varCtx, config2);
+        aggregate(new BinManager(varCtx, agg2), new Observation[][]{
+                {obs(mjd("2011-03-07 11:22:33"), 1, 99, 3, 7)},
+        });
+
+        agg1.finish();
+        agg2.finish();
+
+        SpectrumStoreFile.merge(mergedFile, day2File, day1File);
+        Map<Long, SpectrumStore> merged = SpectrumStoreFile.read(4, 3, mjd2000("2011-03-05"), mergedFile);
+        assertEquals(1, merged.size());
+        SpectrumStore store = merged.get(42L);
+        assertEquals(3, store.size());
+        assertEquals(3, store.getNumObserved());
+        float[] days = new float[3];
+        store.getColumn(3, days);
+        Arrays.sort(days);
+        assertArrayEquals(new float[]{0, 1, 2}, days, 0f);
+
+        // the same result as if all days were binned at once
+        AggregatorRepresentativeSpectrum.Config config3 = createConfig("2011-03-04", "best", varNames, method);
+        config3.partialStates = new String[]{day1File.getPath()};
+        Aggregator agg3 = new AggregatorRepresentativeSpectrum(varCtx, config3);
+        Vector result = aggregate(new BinManager(varCtx, agg3), new Observation[][]{
+                {obs(mjd("2011-03-07 11:22:33"), 1, 99, 3, 7)},
+        });
+        assertVectorEquals(vec(1, 3, 7, 3), result);
+
+        // the same result from the partial states only, bin by bin
+        AggregatorRepresentativeSpectrum agg4 = new AggregatorRepresentativeSpectrum(varCtx, createConfig("2011-03-04", "best", varNames, method));
+        try (SpectrumStoreFile.Index index = agg4.openPartialStates(day1File, day2File)) {
+            assertArrayEquals(new long[]{42L}, index.getBinIndices());
+            SpectrumStore state = index.take(42L);
+            assertEquals(3, state.size());
+            VectorImpl temporalVector = vec(NaN, NaN, NaN, NaN);
+            agg4.completeState(state, temporalVector);
+            assertVectorEquals(vec(1, 3, 7, 3), temporalVector);
+            // taken only once
+            assertNull(index.take(42L));
+            assertEquals(0, index.getRemainingBinIndices().length);
+        }
+    }
+
+    @Test
+    public void testAggregate_e2e_window() throws Exception {
+        String[] varNames = {"r1", "r2", "r3"};
+        AggregatorRepresentativeSpectrum.Method[] methods = {AggregatorRepresentativeSpectrum.Method.RMSDifference};
+        File window1File = createTempFile();
+        File window2File = createTempFile();
+        File window3File = createTempFile();
+
+        // window 2011-03-04 to 2011-03-06
+        AggregatorRepresentativeSpectrum.Config config1 = createConfig("2011-03-04", "best", varNames, methods);
+        config1.partialStateFile = window1File.getPath();
+        config1.windowDays = 3;
+        Aggregator agg1 = new AggregatorRepresentativeSpectrum(varCtx, config1);
+        Vector result = aggregate(new BinManager(varCtx, agg1), new Observation[][]{
+                {obs(mjd("2011-03-04 11:22:33"), 1, 99, 3, 7)},
+                {obs(mjd("2011-03-05 11:22:33"), 2, 99, 3, 5)},
+                {obs(mjd("2011-03-06 11:22:33"), 1, 99, 3, 7)},
+                // outside of the window
+                {obs(mjd("2011-03-07 11:22:33"), 2, 99, 3, 5)},
+                {obs(mjd("2011-03-08 11:22:33"), 2, 99, 3, 5)},
+        });
+        assertVectorEquals(vec(1, 3, 7, 0), result);
+
+        // window 2011-03-05 to 2011-03-07, only the new day is binned, the first day is evicted
+        AggregatorRepresentativeSpectrum.Config config2 = createConfig("2011-03-05", "best", varNames, methods);
+        config2.partialStateFile = window2File.getPath();
+        config2.partialStates = new String[]{window1File.getPath()};
+        config2.windowDays = 3;
+        Aggregator agg2 = new AggregatorRepresentativeSpectrum(varCtx, config2);
+        result = aggregate(new BinManager(varCtx, agg2), new Observation[][]{
+                {obs(mjd("2011-03-07 11:22:33"), 2, 99, 3, 5)},
+        });
+        assertVectorEquals(vec(2, 3, 5, 0), result);
+        assertEquals(3, SpectrumStoreFile.read(4, 3, mjd2000("2011-03-05"), window2File).get(42L).size());
+
+        // window 2011-03-06 to 2011-03-08 without new observations
+        SpectrumStoreFile.merge(window3File, "2011-03-06", 3, window2File);
+        Map<Long, SpectrumStore> window3 = SpectrumStoreFile.read(4, 3, mjd2000("2011-03-06"), window3File);
+        assertEquals(2, window3.get(42L).size());
+
+        // the target would be truncated before the source is read
+        try {
+            SpectrumStoreFile.merge(window2File, "2011-03-06", 3, window3File, window2File);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(3, SpectrumStoreFile.read(4, 3, mjd2000("2011-03-05"), window2File).get(42L).size());
+    }
+
+    @Test
+    public void testAggregate_e2e_partialStates_carriesForwardUnobservedBins() throws Exception {
+        String[] varNames = {"r1", "r2", "r3"};
+        AggregatorRepresentativeSpectrum.Method method = AggregatorRepresentativeSpectrum.Method.RMSDifference;
+        File day1File = createTempFile();
+        File day2File = createTempFile();
+        File day3File = createTempFile();
+
+        // window 2011-03-02 to 2011-03-04, bins 7 and 42 are observed on the last day
+        AggregatorRepresentativeSpectrum.Config config1 = createConfig("2011-03-02", "best", varNames, method);
+        config1.partialStateFile = day1File.getPath();
+        config1.windowDays = 3;
+        AggregatorRepresentativeSpectrum agg1 = new AggregatorRepresentativeSpectrum(varCtx, config1);
+        aggregate(new BinManager(varCtx, agg1), new Observation[][]{
+                {obs(mjd("2011-03-04 11:22:33"), 1, 99, 3, 7)},
+        });
+        BinContext ctx7 = AggregatorTestUtils.createCtx(7);
+        VectorImpl temporalVector = vec(NaN, NaN, NaN, NaN);
+        agg1.initTemporal(ctx7, temporalVector);
+        agg1.aggregateTemporal(ctx7, vec(2, 3, 5, 2), 1, temporalVector);
+        agg1.completeTemporal(ctx7, 1, temporalVector);
+        agg1.finish();
+        assertEquals(2, SpectrumStoreFile.read(4, 3, mjd2000("2011-03-02"), day1File).size());
+
+        // window 2011-03-03 to 2011-03-05, only bin 42 is observed on the last day, bin 7 is carried forward
+        AggregatorRepresentativeSpectrum.Config config2 = createConfig("2011-03-03", "best", varNames, method);
+        config2.partialStateFile = day2File.getPath();
+        config2.partialStates = new String[]{day1File.getPath()};
+        config2.windowDays = 3;
+        AggregatorRepresentativeSpectrum.Descriptor descriptor = new AggregatorRepresentativeSpectrum.Descriptor();
+        try (AggregatorRepresentativeSpectrum.Collector ignored = AggregatorRepresentativeSpectrum.Collector.open()) {
+            // an aggregator which is not used for the binning does not write the partial states
+            descriptor.createAggregator(varCtx, config2);
+            Aggregator agg2 = descriptor.createAggregator(varCtx, config2);
+            aggregate(new BinManager(varCtx, agg2), new Observation[][]{
+                    {obs(mjd("2011-03-05 11:22:33"), 1, 99, 3, 7)},
+            });
+        }
+        Map<Long, SpectrumStore> day2 = SpectrumStoreFile.read(4, 3, mjd2000("2011-03-03"), day2File);
+        assertEquals(2, day2.size());
+        assertEquals(2, day2.get(42L).size());
+        assertEquals(1, day2.get(7L).size());
+        float[] days = new float[1];
+        day2.get(7L).getColumn(3, days);
+        assertArrayEquals(new float[]{1}, days, 0f);
+
+        // window 2011-03-05 to 2011-03-07 without observations, the first day and so bin 7 is evicted
+        AggregatorRepresentativeSpectrum.Config config3 = createConfig("2011-03-05", "best", varNames, method);
+        config3.partialStateFile = day3File.getPath();
+        config3.partialStates = new String[]{day2File.getPath()};
+        config3.windowDays = 3;
+        try (AggregatorRepresentativeSpectrum.Collector ignored = AggregatorRepresentativeSpectrum.Collector.open()) {
+            descriptor.createAggregator(varCtx, config3);
+        }
+        Map<Long, SpectrumStore> day3 = SpectrumStoreFile.read(4, 3, mjd2000("2011-03-05"), day3File);
+        assertEquals(1, day3.size());
+        assertEquals(1, day3.get(42L).size());
+    }
+
+    private static AggregatorRepresentativeSpectrum.Config createConfig(String startDate, String bestObsDateName, String[] varNames,
+                                                                        AggregatorRepresentativeSpectrum.Method... methods) {
+        AggregatorRepresentativeSpectrum.Config config = new AggregatorRepresentativeSpectrum.Config();
+        config.startDate = startDate;
+        config.bestObsDateName = bestObsDateName;
+        config.varNames = varNames;
+        config.methods = methods;
+        return config;
+    }
+
+    private static File createTempFile() throws IOException {
+        File file = File.createTempFile("partial-state-", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static int mjd2000(String date) throws ParseException {
+        return ProductData.UTC.parse(date, "yyyy-MM-dd").getDaysFraction();
+    }
+
+    @Test
+    public void testCompleteTemporal_doesNotAllocateInSteadyState() throws Exception {
+        String[] varNames = {"r1", "r2", "r3"};
+        Random random = new Random(42);
+        for (AggregatorRepresentativeSpectrum.Method method : AggregatorRepresentativeSpectrum.Method.values()) {
+            final Aggregator agg = new AggregatorRepresentativeSpectrum(varCtx, "2011-03-04", "best", method, "", varNames, varNames);
+            final VectorImpl temporalVector = vec(NaN, NaN, NaN, NaN);
+            final BinContext[] contexts = new BinContext[10];
+            for (int b = 0; b < contexts.length; b++) {
+                contexts[b] = AggregatorTestUtils.createCtx();
+                agg.initTemporal(contexts[b], temporalVector);
+                for (int s = 0; s < 5 + 5 * b; s++) {
+                    VectorImpl spatialVector = vec(random.nextFloat(), random.nextFloat(), random.nextFloat(), s);
+                    agg.aggregateTemporal(contexts[b], spatialVector, 1, temporalVector);
+                }
+            }
+            // the scratch grows to the largest bin during the warm-up
+            assertDoesNotAllocate(method.name(), new Runnable() {
+                int i;
+
+                @Override
+                public void run() {
+                    agg.completeTemporal(contexts[i++ % contexts.length], 1, temporalVector);
+                }
+            });
+        }
+    }
+
     @Test
     public void testDescriptorReading() throws Exception {
         String aggregatorDOM  = "<aggregators><aggregator>" +
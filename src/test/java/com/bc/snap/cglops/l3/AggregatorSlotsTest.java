@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import com.bc.snap.cglops.l3.AggregatorSlots.Reduction;
+import com.bc.snap.cglops.l3.AggregatorSlots.SlotFunction;
+import org.esa.snap.binning.BinManager;
+import org.esa.snap.binning.Observation;
+import org.esa.snap.binning.VariableContext;
+import org.esa.snap.binning.Vector;
+import org.esa.snap.core.datamodel.ProductData;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import static com.bc.snap.cglops.l3.AggregatorTestUtils.aggregate;
+import static com.bc.snap.cglops.l3.AggregatorTestUtils.obs;
+import static java.lang.Float.NaN;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AggregatorSlotsTest {
+
+    private static double mjd(String date) throws ParseException {
+        return ProductData.UTC.parse(date, "yyyy-MM-dd HH:mm:ss").getMJD();
+    }
+
+    private VariableContext varCtx;
+
+    @Before
+    public void setUp() throws Exception {
+        varCtx = new MyVariableContext("chl");
+    }
+
+    @Test
+    public void testMetadata() {
+        AggregatorSlots agg = new AggregatorSlots(varCtx, "chl", new SlotFunction[]{SlotFunction.MONTH, SlotFunction.DEKAD}, Reduction.MEAN);
+
+        assertArrayEquals(new String[]{"chl", "year", "day", "month", "dekad"}, agg.getSpatialFeatureNames());
+        assertEquals(48, agg.getOutputFeatureNames().length);
+        assertEquals("chl_month_1", agg.getOutputFeatureNames()[0]);
+        assertEquals("chl_month_12", agg.getOutputFeatureNames()[11]);
+        assertEquals("chl_dekad_1", agg.getOutputFeatureNames()[12]);
+        assertEquals(96, agg.getTemporalFeatureNames().length);
+        assertEquals("chl_month_1_count", agg.getTemporalFeatureNames()[48]);
+
+        agg = new AggregatorSlots(varCtx, "chl", new SlotFunction[]{SlotFunction.WEEK}, Reduction.MAX);
+        assertEquals(53, agg.getTemporalFeatureNames().length);
+
+        agg = new AggregatorSlots(varCtx, "chl", new SlotFunction[]{SlotFunction.MONTH}, Reduction.FIRST);
+        assertEquals(36, agg.getTemporalFeatureNames().length);
+        assertEquals("chl_month_1_year", agg.getTemporalFeatureNames()[12]);
+        assertEquals("chl_month_1_day", agg.getTemporalFeatureNames()[24]);
+    }
+
+    @Test
+    public void testSlotFunctions() throws Exception {
+        double mjd = mjd("2016-12-31 12:00:00");
+        assertEquals(30, SlotFunction.DAY.getSlot(mjd));
+        assertEquals(52, SlotFunction.WEEK.getSlot(mjd));
+        assertEquals(35, SlotFunction.DEKAD.getSlot(mjd));
+        assertEquals(11, SlotFunction.MONTH.getSlot(mjd));
+        assertEquals(365, SlotFunction.DAY_OF_YEAR.getSlot(mjd));
+
+        mjd = mjd("2017-02-11 12:00:00");
+        assertEquals(10, SlotFunction.DAY.getSlot(mjd));
+        assertEquals(5, SlotFunction.WEEK.getSlot(mjd));
+        assertEquals(4, SlotFunction.DEKAD.getSlot(mjd));
+        assertEquals(1, SlotFunction.MONTH.getSlot(mjd));
+        assertEquals(41, SlotFunction.DAY_OF_YEAR.getSlot(mjd));
+    }
+
+    @Test
+    public void testAggregate_e2e_reductions() throws Exception {
+        Observation[][] multipleProductObs = new Observation[][]{
+                {obs(mjd("2017-01-12 10:00:00"), 4)},
+                {obs(mjd("2017-01-03 10:00:00"), 2)},
+                {obs(mjd("2017-01-05 10:00:00"), NaN)},
+                {obs(mjd("2017-03-25 10:00:00"), 6)},
+                {obs(mjd("2017-01-25 10:00:00"), 3)},
+        };
+        SlotFunction[] slotFunctions = {SlotFunction.MONTH, SlotFunction.DEKAD};
+
+        assertSlots(Reduction.FIRST, slotFunctions, multipleProductObs, 2, 2, 4, 3, 6);
+        assertSlots(Reduction.LAST, slotFunctions, multipleProductObs, 3, 2, 4, 3, 6);
+        assertSlots(Reduction.MIN, slotFunctions, multipleProductObs, 2, 2, 4, 3, 6);
+        assertSlots(Reduction.MAX, slotFunctions, multipleProductObs, 4, 2, 4, 3, 6);
+        assertSlots(Reduction.MEAN, slotFunctions, multipleProductObs, 3, 2, 4, 3, 6);
+    }
+
+    @Test
+    public void testAggregate_e2e_closeInTime() throws Exception {
+        // one minute apart, a float MJD2000 only resolves about 84 seconds in 2024
+        Observation[][] multipleProductObs = new Observation[][]{
+                {obs(mjd("2024-09-12 10:01:00"), 2)},
+                {obs(mjd("2024-09-12 10:00:00"), 1)},
+                {obs(mjd("2024-09-12 10:02:00"), 3)},
+        };
+        SlotFunction[] slotFunctions = {SlotFunction.MONTH};
+
+        assertEquals(1, aggregate(new BinManager(varCtx, new AggregatorSlots(varCtx, "chl", slotFunctions, Reduction.FIRST)), multipleProductObs).get(8), 0f);
+        assertEquals(3, aggregate(new BinManager(varCtx, new AggregatorSlots(varCtx, "chl", slotFunctions, Reduction.LAST)), multipleProductObs).get(8), 0f);
+    }
+
+    @Test
+    public void testAggregate_e2e_severalYears() throws Exception {
+        // the day of the year alone would order the years the other way round
+        Observation[][] multipleProductObs = new Observation[][]{
+                {obs(mjd("2017-01-20 10:00:00"), 2)},
+                {obs(mjd("2016-01-25 10:00:00"), 1)},
+                {obs(mjd("2017-01-03 10:00:00"), 3)},
+        };
+        SlotFunction[] slotFunctions = {SlotFunction.MONTH};
+
+        assertEquals(1, aggregate(new BinManager(varCtx, new AggregatorSlots(varCtx, "chl", slotFunctions, Reduction.FIRST)), multipleProductObs).get(0), 0f);
+        assertEquals(2, aggregate(new BinManager(varCtx, new AggregatorSlots(varCtx, "chl", slotFunctions, Reduction.LAST)), multipleProductObs).get(0), 0f);
+    }
+
+    /**
+     * @param expected January and March of the months, the 1st, 2nd and 3rd dekad of January and the 3rd dekad of March
+     */
+    private void assertSlots(Reduction reduction, SlotFunction[] slotFunctions, Observation[][] multipleProductObs,
+                             float january, float dekad1, float dekad2, float dekad3, float march) {
+        AggregatorSlots agg = new AggregatorSlots(varCtx, "chl", slotFunctions, reduction);
+        Vector result = aggregate(new BinManager(varCtx, agg), multipleProductObs);
+        assertEquals(48, result.size());
+        assertEquals(reduction.name(), january, result.get(0), 1e-6f);
+        assertEquals(reduction.name(), NaN, result.get(1), 0f);
+        assertEquals(reduction.name(), march, result.get(2), 0f);
+        assertEquals(reduction.name(), dekad1, result.get(12), 0f);
+        assertEquals(reduction.name(), dekad2, result.get(13), 0f);
+        assertEquals(reduction.name(), dekad3, result.get(14), 0f);
+        assertEquals(reduction.name(), march, result.get(12 + 8), 0f);
+        assertEquals(reduction.name(), NaN, result.get(12 + 35), 0f);
+    }
+}
@@ -28,12 +28,19 @@ import org.esa.snap.binning.WritableVector;
 import org.esa.snap.binning.support.ObservationImpl;
 import org.esa.snap.binning.support.VectorImpl;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.HashMap;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
 public class AggregatorTestUtils {
 
+    private static final int ALLOCATION_WARM_UP_CALLS = 20000;
+    private static final int ALLOCATION_MEASURED_CALLS = 100000;
+
     public static VectorImpl vec(float... values) {
         return new VectorImpl(values);
     }
@@ -47,12 +54,16 @@ public class AggregatorTestUtils {
     }
 
     public static BinContext createCtx() {
+        return createCtx(0);
+    }
+
+    public static BinContext createCtx(final long index) {
         return new BinContext() {
             private final HashMap<String, Object> map = new HashMap<>();
 
             @Override
             public long getIndex() {
-                return 0;
+                return index;
             }
 
             @Override
@@ -72,6 +83,54 @@ public class AggregatorTestUtils {
         };
     }
 
+    /**
+     * Asserts that {@code code} allocates less than one byte per call in the steady state.
+     * Code allocating an object per call allocates at least 16 bytes per call, whereas one-off allocations,
+     * e.g. while the JIT compiler replaces code, are spread over all measured calls.
+     * The test is skipped if the JVM can't measure allocations.
+     */
+    public static void assertDoesNotAllocate(String message, Runnable code) {
+        double bytesPerCall = getAllocatedBytesPerCall(code, ALLOCATION_MEASURED_CALLS);
+        assumeTrue(bytesPerCall >= 0);
+        assertTrue(message + ": " + bytesPerCall + " bytes allocated per call", bytesPerCall < 1);
+    }
+
+    /**
+     * Measures the bytes allocated by the current thread per call of {@code code}.
+     * The code is warmed up through the same call site as it is measured, so it is measured as compiled by the JIT.
+     *
+     * @return The allocated bytes per call, or -1 if the JVM can't tell.
+     */
+    public static double getAllocatedBytesPerCall(Runnable code, int numCalls) {
+        if (getAllocatedBytes() < 0) {
+            return -1;
+        }
+        call(code, ALLOCATION_WARM_UP_CALLS);
+        long allocatedBefore = getAllocatedBytes();
+        call(code, numCalls);
+        return (double) (getAllocatedBytes() - allocatedBefore) / numCalls;
+    }
+
+    private static void call(Runnable code, int numCalls) {
+        for (int i = 0; i < numCalls; i++) {
+            code.run();
+        }
+    }
+
+    /**
+     * @return The number of bytes allocated by the current thread so far, or -1 if the JVM can't tell.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (sunThreadMXBean.isThreadAllocatedMemorySupported() && sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+                return sunThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
     public static void assertVectorEquals(Vector expected, Vector actual) {
         int size = expected.size();
         assertEquals("vector size", size, actual.size());
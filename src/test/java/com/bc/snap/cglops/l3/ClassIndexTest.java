@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ClassIndexTest {
+
+    @Test
+    public void testDenseClasses() throws Exception {
+        assertSameAsLinearScan(new int[]{1, 3}, 1f, 2f, 3f, 0f, 4f, 1.5f, -1f, Float.NaN);
+        assertSameAsLinearScan(new int[]{-5, 0, 5, 0}, -5f, 0f, -0f, 5f, 2.5f, 6f);
+        assertSameAsLinearScan(new int[]{7}, 7f, 7.000001f, 6.999999f, 8f);
+    }
+
+    @Test
+    public void testSparseClasses() throws Exception {
+        int[] classes = {1, 1000, -100000, Integer.MAX_VALUE, Integer.MIN_VALUE, 16777217, 16777216};
+        assertSameAsLinearScan(classes, 1f, 1000f, -100000f, 0x1p31f, -0x1p31f, 16777216f, 16777218f,
+                               0x1p32f, -0x1p32f, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NaN);
+    }
+
+    @Test
+    public void testNoClasses() throws Exception {
+        assertSameAsLinearScan(new int[0], 0f, 1f, Float.NaN);
+    }
+
+    @Test
+    public void testRandomClasses() throws Exception {
+        Random random = new Random(42);
+        for (int n = 1; n < 200; n += 7) {
+            for (int range : new int[]{10, 1000, 1 << 30}) {
+                int[] classes = new int[n];
+                for (int i = 0; i < n; i++) {
+                    classes[i] = random.nextInt(range) - range / 2;
+                }
+                float[] values = new float[500];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = i % 2 == 0 ? classes[random.nextInt(n)] : random.nextInt(range) - range / 2;
+                }
+                assertSameAsLinearScan(classes, values);
+            }
+        }
+    }
+
+    private static void assertSameAsLinearScan(int[] classes, float... values) {
+        ClassIndex classIndex = new ClassIndex(classes);
+        for (float value : values) {
+            assertEquals("value " + value, linearScan(classes, value), classIndex.indexOf(value));
+        }
+    }
+
+    private static int linearScan(int[] classes, float value) {
+        for (int i = 0; i < classes.length; i++) {
+            if (value == classes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import org.esa.snap.binning.operator.VariableConfig;
+import org.esa.snap.binning.support.VectorImpl;
+import org.esa.snap.core.jexp.EvalEnv;
+import org.esa.snap.core.jexp.Term;
+import org.esa.snap.core.jexp.impl.AbstractFunction;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.bc.snap.cglops.l3.AggregatorTestUtils.vec;
+import static org.junit.Assert.assertEquals;
+
+public class FeatureCompilerTest {
+
+    private static final String[] EXPRESSIONS = {
+            "A",
+            "A + B * C",
+            "(A - B) / C",
+            "-A * 2",
+            "A * PI + 1.5",
+            "A > B ? A : B",
+            "A <= 0.5 ? NaN : sqrt(A)",
+            "B >= C ? exp(B) : log(C)",
+            "A < 0.25 ? log10(A) : pow(A, B)",
+            "max(A, B) - min(B, C) + abs(A - C)",
+            "A ? B : C",
+            "sin(A) + B",
+            "7 / 2 + A",
+            "(A + B) * C",
+            "(A + B) * C + sqrt(2 * PI)",
+            "V1 > 0.5 ? V1 : V13",
+            "V14 - (A + B)",
+    };
+
+    @Test
+    public void testSameAsInterpreter() throws Exception {
+        MyVariableContext variableContext = new MyVariableContext("A", "B", "C");
+        VariableConfig[] variableConfigs = new VariableConfig[EXPRESSIONS.length];
+        for (int i = 0; i < EXPRESSIONS.length; i++) {
+            variableConfigs[i] = new VariableConfig("V" + i, EXPRESSIONS[i]);
+        }
+        FeatureMath compiled = new FeatureMath(variableContext, true, variableConfigs);
+        FeatureMath interpreted = new FeatureMath(variableContext, false, variableConfigs);
+
+        Random random = new Random(42);
+        VectorImpl compiledOutput = new VectorImpl(new float[EXPRESSIONS.length]);
+        VectorImpl interpretedOutput = new VectorImpl(new float[EXPRESSIONS.length]);
+        for (int n = 0; n < 1000; n++) {
+            VectorImpl input = new VectorImpl(new float[3]);
+            for (int i = 0; i < 3; i++) {
+                input.set(i, n % 10 == 0 ? Float.NaN : n % 10 == 1 ? 0f : random.nextFloat() * 2 - 0.5f);
+            }
+            compiled.compute(input, compiledOutput);
+            interpreted.compute(input, interpretedOutput);
+            for (int i = 0; i < EXPRESSIONS.length; i++) {
+                assertEquals(EXPRESSIONS[i], interpretedOutput.get(i), compiledOutput.get(i), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testInterpretedFallback() throws Exception {
+        MyVariableContext variableContext = new MyVariableContext("A", "B", "C");
+        FeatureMath featureMath = new FeatureMath(variableContext, new VariableConfig("D", "sin(A) * B"));
+
+        VectorImpl output = new VectorImpl(new float[1]);
+        featureMath.compute(new VectorImpl(new float[]{0.5f, 2f, 0f}), output);
+
+        assertEquals((float) (Math.sin(0.5f) * 2), output.get(0), 0f);
+    }
+
+    @Test
+    public void testSharedSubterms() throws Throwable {
+        CountingFunction f = new CountingFunction();
+        Term a = new Term.Ref(new FeatureSymbol("A", 0));
+        Term b = new Term.Ref(new FeatureSymbol("B", 1));
+        Term[] terms = {
+                new Term.Mul(Term.TYPE_D, new Term.Call(f, a), b),
+                new Term.Add(Term.TYPE_D, new Term.Call(f, a), new Term.ConstD(1.0)),
+        };
+        FeatureCompiler compiler = new FeatureCompiler(terms.length);
+        for (Term term : terms) {
+            compiler.register(term);
+        }
+        for (int i = 0; i < terms.length; i++) {
+            compiler.compile(i, terms[i]);
+        }
+
+        assertEquals(3, compiler.getNumResults());
+        FeatureEvalEnv evalEnv = new FeatureEvalEnv(compiler.getNumResults());
+        compute(compiler, evalEnv, vec(3f, 0.5f));
+        assertEquals(1, f.count);
+        assertEquals(3.0, evalEnv.getResult(0), 0.0);
+        assertEquals(7.0, evalEnv.getResult(1), 0.0);
+        compute(compiler, evalEnv, vec(4f, 0.5f));
+        assertEquals(2, f.count);
+        assertEquals(4.0, evalEnv.getResult(0), 0.0);
+        assertEquals(9.0, evalEnv.getResult(1), 0.0);
+    }
+
+    @Test
+    public void testConstantFolding() throws Throwable {
+        CountingFunction f = new CountingFunction();
+        Term a = new Term.Ref(new FeatureSymbol("A", 0));
+        Term term = new Term.Mul(Term.TYPE_D, new Term.Call(f, new Term.ConstD(1.5)), a);
+        FeatureCompiler compiler = new FeatureCompiler(1);
+        compiler.register(term);
+        compiler.compile(0, term);
+
+        assertEquals(1, f.count);
+        FeatureEvalEnv evalEnv = new FeatureEvalEnv(compiler.getNumResults());
+        for (int i = 0; i < 10; i++) {
+            compute(compiler, evalEnv, vec(i));
+            assertEquals(3.0 * i, evalEnv.getResult(0), 0.0);
+        }
+        assertEquals(1, f.count);
+    }
+
+    private static void compute(FeatureCompiler compiler, FeatureEvalEnv evalEnv, VectorImpl input) throws Throwable {
+        evalEnv.setContext(input);
+        int[] stepResults = compiler.getStepResults();
+        for (int i = 0; i < stepResults.length; i++) {
+            evalEnv.setResult(stepResults[i], (double) compiler.getSteps()[i].invokeExact(evalEnv));
+        }
+    }
+
+    private static class CountingFunction extends AbstractFunction.D {
+
+        int count;
+
+        CountingFunction() {
+            super("twice", 1);
+        }
+
+        @Override
+        public double evalD(EvalEnv env, Term[] args) {
+            count++;
+            return 2 * args[0].evalD(env);
+        }
+    }
+}
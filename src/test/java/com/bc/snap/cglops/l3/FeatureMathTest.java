@@ -26,6 +26,7 @@ import org.junit.Test;
 import java.io.IOException;
 import java.io.InputStreamReader;
 
+import static com.bc.snap.cglops.l3.AggregatorTestUtils.assertDoesNotAllocate;
 import static com.bc.snap.cglops.l3.AggregatorTestUtils.vec;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -118,5 +119,49 @@ public class FeatureMathTest {
         assertEquals(0.3f, output.get(2), 1e-5f);
     }
 
+    @Test
+    public void testOutputReferences() throws Exception {
+        MyVariableContext variableContext = new MyVariableContext("A", "B", "C");
+        VariableConfig[] variableConfigs = new VariableConfig[]{
+                new VariableConfig("D", "A + B"),
+                new VariableConfig("B", "D * 10"),
+                new VariableConfig("E", "B + D"),
+                new VariableConfig("D", "D + 1"),
+                new VariableConfig("F", "D")
+        };
+        for (boolean compile : new boolean[]{true, false}) {
+            FeatureMath featureMath = new FeatureMath(variableContext, compile, variableConfigs);
+
+            VectorImpl input = vec(0.1f, 0.2f, 0.3f);
+            VectorImpl output = vec(Float.NaN, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+            featureMath.compute(input, output);
+
+            assertEquals(0.3f, output.get(0), 1e-5f);
+            assertEquals(3.0f, output.get(1), 1e-5f);
+            assertEquals(0.5f, output.get(2), 1e-5f);
+            assertEquals(1.3f, output.get(3), 1e-5f);
+            assertEquals(1.3f, output.get(4), 1e-5f);
+        }
+    }
 
-}
\ No newline at end of file
+    @Test
+    public void testComputeDoesNotAllocate() throws Exception {
+        MyVariableContext variableContext = new MyVariableContext("A", "B", "C");
+        VariableConfig[] variableConfigs = new VariableConfig[]{
+                new VariableConfig("D", "A + B * C"),
+                new VariableConfig("E", "C / A")
+        };
+        final FeatureMath featureMath = new FeatureMath(variableContext, variableConfigs);
+        final VectorImpl input = vec(0.1f, 0.2f, 0.3f);
+        final VectorImpl output = vec(Float.NaN, Float.NaN);
+        assertDoesNotAllocate("compute", new Runnable() {
+            @Override
+            public void run() {
+                featureMath.compute(input, output);
+            }
+        });
+
+        assertEquals(0.1f + 0.2f * 0.3f, output.get(0), 1e-5f);
+        assertEquals(3f, output.get(1), 1e-5f);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the median computation by full sort with the selection based one.
+ * Not a unit test, run it manually.
+ */
+public class MedianBenchmark {
+
+    private static final int[] SIZES = {10, 20, 50, 100, 200, 300};
+    private static final int NUM_ARRAYS = 1000;
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        for (int run = 0; run < 3; run++) {
+            System.out.println("run " + run);
+            for (int n : SIZES) {
+                float[][] arrays = new float[NUM_ARRAYS][n];
+                for (float[] array : arrays) {
+                    for (int i = 0; i < n; i++) {
+                        array[i] = random.nextFloat();
+                    }
+                }
+                int repetitions = 2_000_000 / n;
+                float[] scratch = new float[n];
+
+                double sink = 0;
+                long t0 = System.nanoTime();
+                for (int r = 0; r < repetitions; r++) {
+                    System.arraycopy(arrays[r % NUM_ARRAYS], 0, scratch, 0, n);
+                    Arrays.sort(scratch);
+                    sink += AggregatorRepresentativeSpectrum.computeMedian(scratch);
+                }
+                long t1 = System.nanoTime();
+                for (int r = 0; r < repetitions; r++) {
+                    System.arraycopy(arrays[r % NUM_ARRAYS], 0, scratch, 0, n);
+                    sink -= AggregatorRepresentativeSpectrum.selectMedian(scratch, n);
+                }
+                long t2 = System.nanoTime();
+
+                double sortNs = (t1 - t0) / (double) repetitions;
+                double selectNs = (t2 - t1) / (double) repetitions;
+                System.out.printf("  n=%3d  sort: %8.1f ns  select: %8.1f ns  speedup: %.2f  (%s)%n",
+                                  n, sortNs, selectNs, sortNs / selectNs, sink == 0 ? "ok" : "MISMATCH");
+            }
+        }
+    }
+}
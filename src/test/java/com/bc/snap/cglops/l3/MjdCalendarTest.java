@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import org.esa.snap.core.datamodel.ProductData;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Random;
+
+import static com.bc.snap.cglops.l3.AggregatorTestUtils.assertDoesNotAllocate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MjdCalendarTest {
+
+    @Test
+    public void testSameAsCalendar() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            double mjd;
+            switch (i % 4) {
+                case 0:
+                    // 1900 to 2100
+                    mjd = -36524 + random.nextDouble() * 73049;
+                    break;
+                case 1:
+                    // close to midnight
+                    mjd = random.nextInt(20000) + (random.nextBoolean() ? 1 : -1) * random.nextDouble() * 1e-7;
+                    break;
+                case 2:
+                    // whole days, e.g. from a parsed date
+                    mjd = random.nextInt(20000) - 10000;
+                    break;
+                default:
+                    // before and around the Gregorian reform
+                    mjd = -160000 + random.nextDouble() * 20000;
+            }
+            assertSameAsCalendar(mjd);
+        }
+    }
+
+    @Test
+    public void testLeapYears() throws Exception {
+        assertSameAsCalendar(mjd("2000-02-29"));
+        assertSameAsCalendar(mjd("2000-12-31"));
+        assertSameAsCalendar(mjd("2016-12-31"));
+        assertSameAsCalendar(mjd("2100-03-01"));
+        assertEquals(366, MjdCalendar.getDayOfYear(mjd("2016-12-31") + 0.5));
+        assertEquals(1, MjdCalendar.getMonth(mjd("2016-02-29") + 0.5));
+        assertEquals(29, MjdCalendar.getDayOfMonth(mjd("2016-02-29") + 0.5));
+    }
+
+    @Test
+    public void testYearStart() throws Exception {
+        assertEquals(0.0, MjdCalendar.getYearStart(2000), 0.0);
+        assertEquals(mjd("2017-01-01"), MjdCalendar.getYearStart(2017), 0.0);
+        assertEquals(mjd("1999-01-01"), MjdCalendar.getYearStart(1999), 0.0);
+    }
+
+    @Test
+    public void testDoesNotAllocate() throws Exception {
+        double[] mjds = new double[1000];
+        Random random = new Random(42);
+        for (int i = 0; i < mjds.length; i++) {
+            mjds[i] = 5000 + 0.1 + random.nextInt(3000) + random.nextDouble() * 0.8;
+        }
+        CalendarFieldsSum calendarFieldsSum = new CalendarFieldsSum(mjds);
+        assertDoesNotAllocate("calendar fields", calendarFieldsSum);
+        assertTrue(calendarFieldsSum.sum > 0);
+    }
+
+    private static final class CalendarFieldsSum implements Runnable {
+
+        private final double[] mjds;
+        private int i;
+        long sum;
+
+        CalendarFieldsSum(double[] mjds) {
+            this.mjds = mjds;
+        }
+
+        @Override
+        public void run() {
+            double mjd = mjds[i++ % mjds.length];
+            sum += MjdCalendar.getYear(mjd) + MjdCalendar.getMonth(mjd) + MjdCalendar.getDayOfMonth(mjd) + MjdCalendar.getDayOfYear(mjd);
+        }
+    }
+
+    private static void assertSameAsCalendar(double mjd) {
+        Calendar calendar = new ProductData.UTC(mjd).getAsCalendar();
+        String message = "mjd=" + mjd;
+        assertEquals(message, calendar.get(Calendar.YEAR), MjdCalendar.getYear(mjd));
+        assertEquals(message, calendar.get(Calendar.MONTH), MjdCalendar.getMonth(mjd));
+        assertEquals(message, calendar.get(Calendar.DAY_OF_MONTH), MjdCalendar.getDayOfMonth(mjd));
+        assertEquals(message, calendar.get(Calendar.DAY_OF_YEAR), MjdCalendar.getDayOfYear(mjd));
+    }
+
+    private static double mjd(String date) throws Exception {
+        return ProductData.UTC.parse(date, "yyyy-MM-dd").getMJD();
+    }
+}
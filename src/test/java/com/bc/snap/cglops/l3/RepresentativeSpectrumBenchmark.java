@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import org.esa.snap.binning.BinContext;
+import org.esa.snap.binning.support.VectorImpl;
+
+import java.util.Random;
+
+/**
+ * Measures the temporal completion (median spectrum and selection of the best spectrum) of
+ * {@link AggregatorRepresentativeSpectrum} for different numbers of bands.
+ * Not a unit test, run it manually.
+ */
+public class RepresentativeSpectrumBenchmark {
+
+    private static final int[] NUM_BANDS = {5, 11, 16, 21};
+    private static final int NUM_SPECTRA = 30;
+    private static final int NUM_BINS = 200;
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        for (int run = 0; run < 3; run++) {
+            System.out.println("run " + run);
+            for (int numBands : NUM_BANDS) {
+                String[] varNames = new String[numBands];
+                for (int i = 0; i < numBands; i++) {
+                    varNames[i] = "r" + i;
+                }
+                MyVariableContext varCtx = new MyVariableContext(varNames);
+                for (AggregatorRepresentativeSpectrum.Method method : AggregatorRepresentativeSpectrum.Method.values()) {
+                    AggregatorRepresentativeSpectrum agg = new AggregatorRepresentativeSpectrum(varCtx, "", null, method, "", varNames, varNames);
+                    VectorImpl temporalVector = new VectorImpl(new float[numBands]);
+                    BinContext[] contexts = new BinContext[NUM_BINS];
+                    for (int b = 0; b < NUM_BINS; b++) {
+                        contexts[b] = AggregatorTestUtils.createCtx();
+                        agg.initTemporal(contexts[b], temporalVector);
+                        for (int s = 0; s < NUM_SPECTRA; s++) {
+                            float[] spectrum = new float[numBands];
+                            for (int i = 0; i < numBands; i++) {
+                                spectrum[i] = 0.01f + random.nextFloat();
+                            }
+                            agg.aggregateTemporal(contexts[b], new VectorImpl(spectrum), 1, temporalVector);
+                        }
+                    }
+                    int repetitions = 200;
+                    double sink = 0;
+                    long t0 = System.nanoTime();
+                    for (int r = 0; r < repetitions; r++) {
+                        for (BinContext context : contexts) {
+                            agg.completeTemporal(context, NUM_SPECTRA, temporalVector);
+                            sink += temporalVector.get(0);
+                        }
+                    }
+                    long t1 = System.nanoTime();
+                    System.out.printf("  bands=%2d %-20s %8.1f ns/bin  (%s)%n", numBands, method,
+                                      (t1 - t0) / (double) (repetitions * NUM_BINS), sink);
+                }
+            }
+        }
+    }
+}
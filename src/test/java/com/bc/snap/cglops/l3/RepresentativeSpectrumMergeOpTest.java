@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import org.esa.snap.binning.Vector;
+import org.esa.snap.core.datamodel.GeoPos;
+import org.esa.snap.core.datamodel.PixelPos;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.gpf.OperatorException;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Map;
+
+import static com.bc.snap.cglops.l3.AggregatorTestUtils.vec;
+import static java.lang.Float.NaN;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RepresentativeSpectrumMergeOpTest {
+
+    // 10 degree bins, 36 columns
+    private static final int NUM_ROWS = 18;
+    private static final int NUM_COLS = 2 * NUM_ROWS;
+
+    @Test
+    public void testMerge() throws Exception {
+        File day1File = createTempFile();
+        File day2File = createTempFile();
+        File outputFile = createTempFile();
+        long bin1 = bin(2, 5);
+        long bin2 = bin(3, 7);
+        long bin3 = bin(3, 8);
+        // columns r1, r2, day
+        try (SpectrumStoreFile.Writer writer = new SpectrumStoreFile.Writer(day1File, 3, 2, mjd2000("2011-03-03"))) {
+            // 2011-03-03 is outside of the window
+            writer.write(bin1, store(vec(9, 9, 0), vec(1, 2, 1)));
+        }
+        try (SpectrumStoreFile.Writer writer = new SpectrumStoreFile.Writer(day2File, 3, 2, mjd2000("2011-03-04"))) {
+            writer.write(bin1, store(vec(3, 4, 1), vec(2, 3, 1)));
+            writer.write(bin2, store(vec(7, 8, 0)));
+            // 2011-03-06 is outside of the window
+            writer.write(bin3, store(vec(4, 4, 2)));
+        }
+
+        RepresentativeSpectrumMergeOp op = new RepresentativeSpectrumMergeOp();
+        op.setParameterDefaultValues();
+        op.setParameter("partialStates", new String[]{day1File.getPath(), day2File.getPath()});
+        op.setParameter("aggregatorConfig", createConfig());
+        op.setParameter("numRows", NUM_ROWS);
+        op.setParameter("outputStateFile", outputFile.getPath());
+        Product product = op.getTargetProduct();
+
+        // the bounding box of the bins: rows 2 to 3, columns 5 to 8
+        assertEquals(4, product.getSceneRasterWidth());
+        assertEquals(2, product.getSceneRasterHeight());
+        assertArrayEquals(new String[]{"r1", "r2", "best"}, product.getBandNames());
+        GeoPos geoPos = product.getSceneGeoCoding().getGeoPos(new PixelPos(0.5, 0.5), null);
+        assertEquals(65.0, geoPos.lat, 1e-6);
+        assertEquals(-125.0, geoPos.lon, 1e-6);
+
+        // the spectrum closest to the median (2, 3) of the window, on 2011-03-05
+        assertPixel(product, 0, 0, 2, 3, 1);
+        // a single spectrum
+        assertPixel(product, 2, 1, 7, 8, 0);
+        // no spectra in the window
+        assertPixel(product, 3, 1, NaN, NaN, NaN);
+        // no bin
+        assertPixel(product, 1, 0, NaN, NaN, NaN);
+
+        // the merged state of the window
+        Map<Long, SpectrumStore> state = SpectrumStoreFile.read(3, 2, mjd2000("2011-03-04"), outputFile);
+        assertEquals(2, state.size());
+        assertEquals(3, state.get(bin1).size());
+        assertEquals(1, state.get(bin2).size());
+    }
+
+    @Test
+    public void testOutputStateFileMustNotBeASource() throws Exception {
+        File dayFile = createTempFile();
+        try (SpectrumStoreFile.Writer writer = new SpectrumStoreFile.Writer(dayFile, 3, 2, mjd2000("2011-03-04"))) {
+            writer.write(bin(2, 5), store(vec(1, 2, 0)));
+        }
+        RepresentativeSpectrumMergeOp op = new RepresentativeSpectrumMergeOp();
+        op.setParameterDefaultValues();
+        op.setParameter("partialStates", new String[]{dayFile.getPath()});
+        op.setParameter("aggregatorConfig", createConfig());
+        op.setParameter("numRows", NUM_ROWS);
+        op.setParameter("outputStateFile", dayFile.getPath());
+        try {
+            op.getTargetProduct();
+            fail();
+        } catch (OperatorException expected) {
+        }
+        assertEquals(1, SpectrumStoreFile.read(3, 2, mjd2000("2011-03-04"), dayFile).size());
+    }
+
+    private static AggregatorRepresentativeSpectrum.Config createConfig() {
+        AggregatorRepresentativeSpectrum.Config config = new AggregatorRepresentativeSpectrum.Config();
+        config.varNames = new String[]{"r1", "r2"};
+        config.methods = new AggregatorRepresentativeSpectrum.Method[]{AggregatorRepresentativeSpectrum.Method.RMSDifference};
+        config.startDate = "2011-03-04";
+        config.bestObsDateName = "best";
+        config.windowDays = 2;
+        return config;
+    }
+
+    private static void assertPixel(Product product, int x, int y, float... expected) {
+        for (int i = 0; i < expected.length; i++) {
+            float actual = product.getBandAt(i).getSourceImage().getData().getSampleFloat(x, y, 0);
+            assertEquals(product.getBandAt(i).getName() + " at " + x + "," + y, expected[i], actual, 1e-6f);
+        }
+    }
+
+    private static long bin(int row, int col) {
+        return (long) row * NUM_COLS + col;
+    }
+
+    private static SpectrumStore store(Vector... rows) {
+        SpectrumStore store = new SpectrumStore(3, rows.length);
+        for (Vector row : rows) {
+            store.add(row);
+        }
+        return store;
+    }
+
+    private static File createTempFile() throws IOException {
+        File file = File.createTempFile("partial-state-", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static int mjd2000(String date) throws ParseException {
+        return ProductData.UTC.parse(date, "yyyy-MM-dd").getDaysFraction();
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2017 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package com.bc.snap.cglops.l3;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+
+import static com.bc.snap.cglops.l3.AggregatorTestUtils.vec;
+import static java.lang.Float.NaN;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpectrumStoreTest {
+
+    @Test
+    public void testAddAndGet() throws Exception {
+        SpectrumStore store = new SpectrumStore(3, 1);
+        assertEquals(3, store.getNumColumns());
+        assertEquals(0, store.size());
+
+        store.add(vec(1, 2, 3));
+        store.add(vec(4, 5, 6, 99));
+        store.add(vec(7, 8, 9));
+        assertEquals(3, store.size());
+
+        assertEquals(1f, store.get(0, 0), 0f);
+        assertEquals(6f, store.get(1, 2), 0f);
+        assertEquals(8f, store.get(2, 1), 0f);
+    }
+
+    @Test
+    public void testAddSample() throws Exception {
+        SpectrumStore store1 = new SpectrumStore(1, 1);
+        SpectrumStore store2 = new SpectrumStore(1, 1);
+        for (int i = 0; i < 100; i++) {
+            store1.addSample(vec(i), 5, 42);
+            store2.addSample(vec(i), 5, 42);
+        }
+        assertEquals(5, store1.size());
+        assertEquals(100, store1.getNumObserved());
+        float[] sample1 = new float[5];
+        float[] sample2 = new float[5];
+        store1.getColumn(0, sample1);
+        store2.getColumn(0, sample2);
+        assertArrayEquals(sample2, sample1, 0f);
+        assertFalse(Arrays.equals(new float[]{0, 1, 2, 3, 4}, sample1));
+    }
+
+    @Test
+    public void testAddSample_isUniform() throws Exception {
+        int[] histogram = new int[10];
+        for (int seed = 0; seed < 2000; seed++) {
+            SpectrumStore store = new SpectrumStore(1, 1);
+            for (int i = 0; i < 10; i++) {
+                store.addSample(vec(i), 3, seed);
+            }
+            for (int row = 0; row < store.size(); row++) {
+                histogram[(int) store.get(row, 0)]++;
+            }
+        }
+        // every value is expected 600 times
+        for (int count : histogram) {
+            assertTrue(String.valueOf(count), count > 500 && count < 700);
+        }
+    }
+
+    @Test
+    public void testSpillAndLoad() throws Exception {
+        SpectrumSpill spill = new SpectrumSpill(1000, null);
+        // the initial capacity used by the aggregator
+        SpectrumStore store1 = new SpectrumStore(2, 10, spill, null);
+        SpectrumStore store2 = new SpectrumStore(2, 10, spill, null);
+        int numRows = 640;
+        for (int i = 0; i < numRows; i++) {
+            store1.add(vec(i, -i));
+            store2.add(vec(100 + i, -100 - i));
+            // the threshold plus the growth of one buffer, which is at most half of it plus a row
+            assertTrue(spill.getHeapBytes() <= 1000 + 1000 / 2 + 2 * 4);
+        }
+        assertEquals(numRows, store1.size());
+        assertTrue(store1.getNumSpilled() > 0);
+        assertTrue(store2.getNumSpilled() > 0);
+        // spilled down to half the threshold, so many rows at once
+        assertTrue(store1.getNumSegments() <= numRows / 10);
+        assertTrue(store2.getNumSegments() <= numRows / 10);
+
+        store1.load();
+        assertEquals(0, store1.getNumSpilled());
+        assertEquals(numRows, store1.size());
+        for (int i = 0; i < numRows; i++) {
+            assertEquals(i, store1.get(i, 0), 0f);
+            assertEquals(-i, store1.get(i, 1), 0f);
+        }
+        store2.load();
+        float[] column = new float[numRows];
+        store2.getColumn(0, column);
+        for (int i = 0; i < numRows; i++) {
+            assertEquals(100 + i, column[i], 0f);
+        }
+
+        store1.release();
+        store2.release();
+        assertEquals(0, store1.size());
+        assertEquals(0, spill.getHeapBytes());
+        spill.close();
+    }
+
+    @Test
+    public void testSpill_manySmallStores() throws Exception {
+        SpectrumSpill spill = new SpectrumSpill(1000, null);
+        SpectrumStore[] stores = new SpectrumStore[100];
+        for (int s = 0; s < stores.length; s++) {
+            stores[s] = new SpectrumStore(2, 10, spill, null);
+        }
+        for (int i = 0; i < 5; i++) {
+            for (int s = 0; s < stores.length; s++) {
+                stores[s].add(vec(s, i));
+                assertTrue(spill.getHeapBytes() <= 1000 + 2 * 4 * 10);
+            }
+        }
+        // each store is small, but together they exceed the threshold, the oldest are spilled
+        assertTrue(stores[0].getNumSpilled() > 0);
+        for (int s = 0; s < stores.length; s++) {
+            stores[s].load();
+            assertEquals(5, stores[s].size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals(s, stores[s].get(i, 0), 0f);
+                assertEquals(i, stores[s].get(i, 1), 0f);
+            }
+            stores[s].release();
+        }
+        assertEquals(0, spill.getHeapBytes());
+        spill.close();
+    }
+
+    @Test
+    public void testSpill_freesBuffer() throws Exception {
+        SpectrumSpill spill = new SpectrumSpill(0, null);
+        SpectrumStore store = new SpectrumStore(2, 10, spill, null);
+        // nothing allocated before the first row
+        assertEquals(0, spill.getHeapBytes());
+
+        store.add(vec(-1, 1));
+        assertEquals(1, store.getNumSpilled());
+        assertEquals(0, spill.getHeapBytes());
+
+        store.add(vec(-2, 2));
+        assertEquals(2, store.getNumSpilled());
+        assertEquals(0, spill.getHeapBytes());
+        store.load();
+        assertEquals(2 * 4 * 2, spill.getHeapBytes());
+        // a loaded store is not spilled anymore
+        SpectrumStore other = new SpectrumStore(2, 10, spill, null);
+        other.add(vec(-3, 3));
+        assertEquals(0, store.getNumSpilled());
+        assertEquals(2, store.size());
+        assertEquals(-1, store.get(0, 0), 0f);
+        assertEquals(-2, store.get(1, 0), 0f);
+
+        spill.close();
+        try {
+            spill.write(new float[2], 0, 2);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testAddAll_andWriteRead() throws Exception {
+        SpectrumStore store1 = new SpectrumStore(2, 1);
+        store1.add(vec(1, 0));
+        SpectrumStore store2 = new SpectrumStore(2, 1);
+        store2.add(vec(2, 0));
+        store2.add(vec(3, 1));
+
+        store1.addAll(store2, 1, 5);
+        assertEquals(3, store1.size());
+        assertEquals(3, store1.getNumObserved());
+        assertEquals(0f, store1.get(0, 1), 0f);
+        assertEquals(5f, store1.get(1, 1), 0f);
+        assertEquals(3f, store1.get(2, 0), 0f);
+        assertEquals(6f, store1.get(2, 1), 0f);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        store1.writeTo(new DataOutputStream(bytes));
+        SpectrumStore read = SpectrumStore.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 2);
+        assertEquals(3, read.size());
+        assertEquals(3, read.getNumObserved());
+        for (int row = 0; row < 3; row++) {
+            assertEquals(store1.get(row, 0), read.get(row, 0), 0f);
+            assertEquals(store1.get(row, 1), read.get(row, 1), 0f);
+        }
+    }
+
+    @Test
+    public void testEncoded() throws Exception {
+        SpectrumEncoding encoding = new SpectrumEncoding(new float[]{0.001f, 0.5f}, new float[]{0, 10}, true);
+        SpectrumStore store = new SpectrumStore(3, 1, null, encoding);
+        store.add(vec(0.1234f, 12, 3));
+        store.add(vec(-0.5f, 9.4f, 255));
+        store.add(vec(100, NaN, 0));
+        assertEquals(3, store.size());
+
+        assertEquals(0.123f, store.get(0, 0), 1e-6f);
+        assertEquals(12f, store.get(0, 1), 0f);
+        assertEquals(3f, store.get(0, 2), 0f);
+        assertEquals(-0.5f, store.get(1, 0), 1e-6f);
+        assertEquals(9.5f, store.get(1, 1), 0f);
+        assertEquals(255f, store.get(1, 2), 0f);
+        // clamped
+        assertEquals(32.767f, store.get(2, 0), 1e-5f);
+        assertTrue(Float.isNaN(store.get(2, 1)));
+
+        float[] block = new float[6];
+        store.getColumns(new int[]{2, 1}, block);
+        assertArrayEquals(new float[]{3, 12, 255, 9.5f, 0, NaN}, block, 0f);
+
+        try {
+            store.add(vec(0, 0, 256));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testRetainDays() throws Exception {
+        SpectrumStore store = new SpectrumStore(2, 1);
+        store.add(vec(1, -1));
+        store.add(vec(2, 0));
+        store.add(vec(3, 5));
+        store.add(vec(4, 9));
+        store.add(vec(5, 10));
+
+        assertEquals(2, store.retainDays(1, 0, 10));
+        assertEquals(3, store.size());
+        assertEquals(3, store.getNumObserved());
+        assertEquals(2f, store.get(0, 0), 0f);
+        assertEquals(3f, store.get(1, 0), 0f);
+        assertEquals(4f, store.get(2, 0), 0f);
+        assertEquals(9f, store.get(2, 1), 0f);
+    }
+
+    @Test
+    public void testGetColumn() throws Exception {
+        SpectrumStore store = new SpectrumStore(2, 10);
+        store.add(vec(1, 2));
+        store.add(vec(3, 4));
+        store.add(vec(5, 6));
+
+        float[] column = new float[3];
+        store.getColumn(1, column);
+        assertArrayEquals(new float[]{2, 4, 6}, column, 0f);
+        store.getColumn(0, column);
+        assertArrayEquals(new float[]{1, 3, 5}, column, 0f);
+    }
+}